@@ -16,6 +16,11 @@ public interface Capz {
         return factory.context();
     }
 
+    // 创建集群模式的Capz实例，事件总线启动完成后回调resultHandler
+    static void clusteredCapz(CapzOptions options, Handler<AsyncResult<Capz>> resultHandler) {
+        factory.clusteredCapz(options, resultHandler);
+    }
+
     EventBus eventBus();
 
 
@@ -3,7 +3,9 @@ package com.capz.core;
 import com.capz.core.http.impl.HttpServerImpl;
 import com.capz.core.impl.AbstractContext;
 import com.capz.core.impl.EventLoopContext;
+import com.capz.core.impl.TimerService;
 import com.capz.core.net.impl.ServerID;
+import com.capz.core.net.impl.transport.Transport;
 import io.netty.channel.EventLoopGroup;
 
 import java.util.Map;
@@ -33,6 +35,16 @@ public interface CapzInternal extends Capz {
                                             ClassLoader tccl);
 
 
+    /**
+     * 每个任务一个虚拟线程的worker executor，JDK不支持虚拟线程时返回null
+     */
+    WorkerExecutor createVirtualThreadWorkerExecutor(String name);
+
     Map<ServerID, HttpServerImpl> sharedHttpServers();
 
+    TimerService timerService();
+
+    // 网络传输层，由CapzOptions.preferNativeTransport决定
+    Transport transport();
+
 }
@@ -1,6 +1,7 @@
 package com.capz.core;
 
 import com.capz.core.eventbus.EventBusOptions;
+import com.capz.core.spi.cluster.NodeRegistry;
 import lombok.Getter;
 
 import java.util.Objects;
@@ -62,6 +63,21 @@ public class CapzOptions {
     public static final boolean DEFAULT_PREFER_NATIVE_TRANSPORT = false;
 
 
+    // 定时器时间轮的精度（毫秒）
+    public static final long DEFAULT_TIMER_TICK = 1;
+
+
+    public static final int DEFAULT_TIMER_WHEEL_SIZE = 512;
+
+
+    // 非Capz线程多次调用getOrCreateContext时复用同一个context（同一个event loop）
+    public static final boolean DEFAULT_STICKY_EMBEDDED_CONTEXT = true;
+
+
+    // 为非Capz线程缓存的context的最大个数，已经结束的线程不计入
+    public static final int DEFAULT_MAX_EMBEDDED_CONTEXTS = 1024;
+
+
     private static final long DEFAULT_WARNING_EXCEPTION_TIME = 5L * 1000 * 1000000;
 
     private int eventLoopPoolSize = DEFAULT_EVENT_LOOP_POOL_SIZE;
@@ -71,6 +87,7 @@ public class CapzOptions {
     private long maxEventLoopExecuteTime = DEFAULT_MAX_EVENT_LOOP_EXECUTE_TIME;
     private long maxWorkerExecuteTime = DEFAULT_MAX_WORKER_EXECUTE_TIME;
     //private ClusterManager clusterManager;
+    private NodeRegistry nodeRegistry;
     private boolean haEnabled = DEFAULT_HA_ENABLED;
     private int quorumSize = DEFAULT_QUORUM_SIZE;
     private String haGroup = DEFAULT_HA_GROUP;
@@ -78,6 +95,10 @@ public class CapzOptions {
     private EventBusOptions eventBusOptions = new EventBusOptions();
     private boolean fileResolverCachingEnabled = DEFAULT_FILE_CACHING_ENABLED;
     private boolean preferNativeTransport = DEFAULT_PREFER_NATIVE_TRANSPORT;
+    private long timerTick = DEFAULT_TIMER_TICK;
+    private int timerWheelSize = DEFAULT_TIMER_WHEEL_SIZE;
+    private boolean stickyEmbeddedContext = DEFAULT_STICKY_EMBEDDED_CONTEXT;
+    private int maxEmbeddedContexts = DEFAULT_MAX_EMBEDDED_CONTEXTS;
 
 
     public CapzOptions setEventLoopPoolSize(int eventLoopPoolSize) {
@@ -245,9 +266,51 @@ public class CapzOptions {
     }
 
 
+    // 集群模式下使用的节点注册表，为null时通过SPI加载，找不到时启动失败；同一个JVM中的节点可以使用LocalNodeRegistry
+    public CapzOptions setNodeRegistry(NodeRegistry nodeRegistry) {
+        this.nodeRegistry = nodeRegistry;
+        return this;
+    }
+
+
     public CapzOptions setPreferNativeTransport(boolean preferNativeTransport) {
         this.preferNativeTransport = preferNativeTransport;
         return this;
     }
 
+
+    public CapzOptions setTimerTick(long timerTick) {
+        if (timerTick < 1) {
+            throw new IllegalArgumentException("timerTick must be > 0");
+        }
+        this.timerTick = timerTick;
+        return this;
+    }
+
+
+    // 时间轮的槽数，必须是2的幂
+    public CapzOptions setTimerWheelSize(int timerWheelSize) {
+        if (timerWheelSize < 1 || Integer.bitCount(timerWheelSize) != 1) {
+            throw new IllegalArgumentException("timerWheelSize must be a power of 2");
+        }
+        this.timerWheelSize = timerWheelSize;
+        return this;
+    }
+
+
+    public CapzOptions setStickyEmbeddedContext(boolean stickyEmbeddedContext) {
+        this.stickyEmbeddedContext = stickyEmbeddedContext;
+        return this;
+    }
+
+
+    // 超过这个个数之后新的非Capz线程不再缓存context，每次调用都创建新的context
+    public CapzOptions setMaxEmbeddedContexts(int maxEmbeddedContexts) {
+        if (maxEmbeddedContexts < 1) {
+            throw new IllegalArgumentException("maxEmbeddedContexts must be > 0");
+        }
+        this.maxEmbeddedContexts = maxEmbeddedContexts;
+        return this;
+    }
+
 }
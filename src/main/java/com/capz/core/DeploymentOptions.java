@@ -15,6 +15,7 @@ public class DeploymentOptions {
     public static final String DEFAULT_ISOLATION_GROUP = null;
     public static final boolean DEFAULT_HA = false;
     public static final int DEFAULT_INSTANCES = 1;
+    public static final boolean DEFAULT_VIRTUAL_THREADS = false;
 
 
     private boolean worker;
@@ -27,6 +28,7 @@ public class DeploymentOptions {
     private List<String> extraClasspath;
     private int instances;
     private List<String> isolatedClasses;
+    private boolean virtualThreads;
 
 
     public DeploymentOptions() {
@@ -39,6 +41,7 @@ public class DeploymentOptions {
         this.workerPoolName = null;
         this.workerPoolSize = CapzOptions.DEFAULT_WORKER_POOL_SIZE;
         this.maxWorkerExecuteTime = CapzOptions.DEFAULT_MAX_WORKER_EXECUTE_TIME;
+        this.virtualThreads = DEFAULT_VIRTUAL_THREADS;
     }
 
 
@@ -53,6 +56,7 @@ public class DeploymentOptions {
         this.workerPoolName = other.workerPoolName;
         setWorkerPoolSize(other.workerPoolSize);
         setMaxWorkerExecuteTime(other.maxWorkerExecuteTime);
+        this.virtualThreads = other.virtualThreads;
     }
 
 
@@ -143,6 +147,16 @@ public class DeploymentOptions {
     }
 
 
+    /**
+     * 在每个context自己的虚拟线程executor上运行capsule（作为worker），阻塞调用不占用worker线程池。
+     * JDK不支持虚拟线程时退回普通的worker线程池
+     */
+    public DeploymentOptions setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+
     public DeploymentOptions setMaxWorkerExecuteTime(long maxWorkerExecuteTime) {
         if (maxWorkerExecuteTime < 1) {
             throw new IllegalArgumentException("maxWorkerExecuteTime must be > 0");
@@ -0,0 +1,10 @@
+package com.capz.core.eventbus;
+
+/**
+ * 通过EventBus.address(String)得到的地址句柄，缓存了地址对应的consumer，
+ * 通过句柄发送消息时不需要每次按地址字符串查找。consumer注册和注销后句柄会自动重新解析。
+ */
+public interface Address {
+
+    String address();
+}
@@ -20,6 +20,9 @@ public class DeliveryOptions {
     private long timeout = DEFAULT_TIMEOUT;
     private String codecName;
     private Map<String, List<String>> headers;
+    private boolean inlineDelivery;
+    private boolean ownershipTransfer;
+    private DeliveryStrategy deliveryStrategy;
 
 
     public DeliveryOptions() {
@@ -29,16 +32,22 @@ public class DeliveryOptions {
     public DeliveryOptions(DeliveryOptions other) {
         this.timeout = other.getTimeout();
         this.codecName = other.getCodecName();
-        this.headers = other.getHeaders();
+        // 复制header，修改副本不会影响原来的options
+        this.headers = MessageHeaders.copyOf(other.headers);
+        this.inlineDelivery = other.isInlineDelivery();
+        this.ownershipTransfer = other.isOwnershipTransfer();
+        this.deliveryStrategy = other.getDeliveryStrategy();
     }
 
     // Create a delivery options from JSON
     public DeliveryOptions(JSONObject json) {
         Long timeout = json.getLong("timeout");
         if (timeout != null) {
-            this.timeout = timeout;
+            setTimeout(timeout);
         }
         this.codecName = json.getString("codecName");
+        this.inlineDelivery = json.getBooleanValue("inlineDelivery");
+        this.ownershipTransfer = json.getBooleanValue("ownershipTransfer");
         String hdrsStr = json.getString("headers");
 
         if (!StringUtil.isEmpty(hdrsStr)) {
@@ -47,7 +56,11 @@ public class DeliveryOptions {
     }
 
 
+    // 等待回复的毫秒数，-1表示不超时
     public DeliveryOptions setTimeout(long timeout) {
+        if (timeout < 1 && timeout != -1) {
+            throw new IllegalArgumentException("timeout must be > 0 or -1 (no timeout)");
+        }
         this.timeout = timeout;
         return this;
     }
@@ -57,8 +70,32 @@ public class DeliveryOptions {
         return this;
     }
 
+    // 发送方和接收方在同一个context时，在发送方当前任务结束时直接投递，而不是重新提交到event loop
+    public DeliveryOptions setInlineDelivery(boolean inlineDelivery) {
+        this.inlineDelivery = inlineDelivery;
+        return this;
+    }
+
+    // 本次发送使用的consumer选择策略，覆盖consumer为地址设置的策略；只作用于本节点上的consumer
+    public DeliveryOptions setDeliveryStrategy(DeliveryStrategy deliveryStrategy) {
+        this.deliveryStrategy = deliveryStrategy;
+        return this;
+    }
+
+    /**
+     * 发送方把body的所有权交给接收方：本地投递只有一个接收者时不再复制body，
+     * 接收者拿到的是原来的对象（Buffer是原数据的只读视图）。发送之后发送方不能再修改body。
+     * 只对内置的codec有效，发布给多个consumer时仍然各自复制。
+     */
+    public DeliveryOptions setOwnershipTransfer(boolean ownershipTransfer) {
+        this.ownershipTransfer = ownershipTransfer;
+        return this;
+    }
+
+    // 复制成MessageHeaders，之后修改传入的Map不影响options，各接收者也不会共享同一个可变的Map
+    @SuppressWarnings("unchecked")
     public DeliveryOptions setHeaders(Map headers) {
-        this.headers = headers;
+        this.headers = MessageHeaders.copyOf(headers);
         return this;
     }
 
@@ -66,12 +103,14 @@ public class DeliveryOptions {
         Objects.requireNonNull(key, "no null key accepted");
         Objects.requireNonNull(value, "no null value accepted");
 
-        List<String> header;
-        if ((header = headers.get(key)) == null) {
-            header = new ArrayList();
-            headers.put(key, header);
+        if (headers == null) {
+            headers = new MessageHeaders();
+        }
+        if (headers instanceof MessageHeaders) {
+            ((MessageHeaders) headers).add(key, value);
+        } else {
+            headers.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
         }
-        header.add(value);
 
         return this;
     }
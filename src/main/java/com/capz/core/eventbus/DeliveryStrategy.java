@@ -0,0 +1,42 @@
+package com.capz.core.eventbus;
+
+import com.capz.core.eventbus.impl.DeliveryStrategies;
+
+import java.util.List;
+
+/**
+ * send模式下，一个地址上有多个consumer时选择由哪个consumer接收消息。
+ * <p>
+ * 可以通过{@link MessageConsumer#setDeliveryStrategy}为地址设置，也可以通过
+ * {@link DeliveryOptions#setDeliveryStrategy}为单次发送指定。没有设置时按轮询选择。
+ * choose会在发送消息的线程上被并发调用，实现需要是线程安全的。
+ */
+public interface DeliveryStrategy {
+
+    // 轮询
+    static DeliveryStrategy roundRobin() {
+        return new DeliveryStrategies.RoundRobin();
+    }
+
+    // 选择mailbox中待处理消息最少的consumer
+    static DeliveryStrategy leastPending() {
+        return new DeliveryStrategies.LeastPending();
+    }
+
+    // 随机选两个consumer，取待处理消息较少的那个
+    static DeliveryStrategy powerOfTwoChoices() {
+        return DeliveryStrategies.PowerOfTwoChoices.INSTANCE;
+    }
+
+    // 按header的值做一致性哈希，同一个值总是投递给同一个consumer；没有该header的消息按轮询投递
+    static DeliveryStrategy stickyByHeader(String headerName) {
+        return new DeliveryStrategies.StickyByHeader(headerName);
+    }
+
+    /**
+     * @param message   要投递的消息
+     * @param consumers 地址上当前的consumer，至少有两个，不能修改
+     * @return 接收消息的consumer在consumers中的下标
+     */
+    int choose(Message<?> message, List<MessageConsumer<?>> consumers);
+}
@@ -0,0 +1,11 @@
+package com.capz.core.eventbus;
+
+/**
+ * doubleConsumer的handler，body以double直接传入，sendDouble/publishDouble发送的消息在本地投递时不装箱
+ */
+@FunctionalInterface
+public interface DoubleMessageHandler {
+
+    // message用于回复等操作，只有调用message.body()时才会装箱
+    void handle(double body, Message<Double> message);
+}
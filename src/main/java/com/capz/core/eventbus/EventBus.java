@@ -3,6 +3,8 @@ package com.capz.core.eventbus;
 import com.capz.core.AsyncResult;
 import com.capz.core.Handler;
 
+import java.util.List;
+
 /**
  * 事件总线
  */
@@ -18,19 +20,71 @@ public interface EventBus {
 
     <T> EventBus send(String address, Object message, DeliveryOptions options, Handler<AsyncResult<Message<T>>> replyHandler);
 
+    // 发送请求，回复方可以通过message.replyStream()分多条消息回复；options的timeout只作用于第一次回复
+    <T> ReplyReadStream<T> request(String address, Object message);
+
+    <T> ReplyReadStream<T> request(String address, Object message, DeliveryOptions options);
+
     // 发布消息
     EventBus publish(String address, Object message);
 
 
     EventBus publish(String address, Object message, DeliveryOptions options);
 
+    // 以下方法发送基本类型的值，配合longConsumer/doubleConsumer在本地投递时不装箱
+    EventBus sendLong(String address, long value);
+
+    EventBus publishLong(String address, long value);
+
+    EventBus sendDouble(String address, double value);
+
+    EventBus publishDouble(String address, double value);
+
+    /**
+     * 合并address上相同的请求：key相同的send请求在等待回复期间只发送第一个，回复交给所有请求方。
+     * replyTtl毫秒内key相同的请求直接使用上一次的回复，0表示回复到达后不再使用。只作用于带回复handler的send。
+     * 发送拦截器只会看到实际发送的请求，被合并的请求不经过拦截器。
+     */
+    EventBus singleFlight(String address, SingleFlightKey key, long replyTtl);
+
+    EventBus singleFlight(String address, SingleFlightKey key);
+
+    EventBus removeSingleFlight(String address);
+
+    // 返回地址的句柄，同一个地址返回同一个句柄；通过句柄发送消息时不需要按地址查找consumer
+    Address address(String address);
+
+    EventBus send(Address address, Object message);
+
+    <T> EventBus send(Address address, Object message, Handler<AsyncResult<Message<T>>> replyHandler);
 
+    EventBus send(Address address, Object message, DeliveryOptions options);
+
+    <T> EventBus send(Address address, Object message, DeliveryOptions options, Handler<AsyncResult<Message<T>>> replyHandler);
+
+    EventBus publish(Address address, Object message);
+
+    EventBus publish(Address address, Object message, DeliveryOptions options);
+
+
+    // address可以包含通配符分段：* 匹配一个分段，# 匹配零个或多个分段，例如 orders.*.created、metrics.#
     <T> MessageConsumer<T> consumer(String address);
 
 
     <T> MessageConsumer<T> consumer(String address, Handler<Message<T>> handler);
 
 
+    /**
+     * 批量消费：消息攒够maxBatchSize条，或者一批中的第一条消息到达maxDelayMs毫秒后，一起交给handler。
+     * 批中的每条消息都可以单独回复。
+     */
+    <T> MessageConsumer<T> batchConsumer(String address, int maxBatchSize, long maxDelayMs,
+                                         Handler<List<Message<T>>> handler);
+
+    MessageConsumer<Long> longConsumer(String address, LongMessageHandler handler);
+
+    MessageConsumer<Double> doubleConsumer(String address, DoubleMessageHandler handler);
+
     <T> MessageConsumer<T> localConsumer(String address);
 
 
@@ -60,6 +114,12 @@ public interface EventBus {
 
     EventBus unregisterDefaultCodec(Class clazz);
 
+    // 发送到address且没有指定codecName的消息都使用名为codecName的codec
+    EventBus bindCodec(String address, String codecName);
+
+
+    EventBus unbindCodec(String address);
+
 
     //Start the event bus. This would not normally be called in user code
     void start(Handler<AsyncResult<Void>> completionHandler);
@@ -72,6 +132,9 @@ public interface EventBus {
     // 拦截器
     EventBus addInterceptor(Handler<SendContext> interceptor);
 
+    // 只拦截发送到匹配addressPattern的地址的消息，addressPattern的写法与consumer的地址相同
+    EventBus addInterceptor(String addressPattern, Handler<SendContext> interceptor);
+
     EventBus removeInterceptor(Handler<SendContext> interceptor);
 
 }
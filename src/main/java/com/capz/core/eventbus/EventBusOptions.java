@@ -2,6 +2,7 @@ package com.capz.core.eventbus;
 
 
 import com.capz.core.CapzOptions;
+import com.capz.core.spi.metrics.EventBusMetrics;
 import lombok.Getter;
 
 @Getter
@@ -42,6 +43,28 @@ public class EventBusOptions {
     private int connectTimeout;
     private boolean trustAll;
 
+    // 同一个context内的投递在当前任务结束时直接执行，不再提交到event loop
+    public static final boolean DEFAULT_INLINE_DELIVERY = false;
+
+    // 一个任务结束时最多直接执行的投递个数，超出的部分仍然提交到event loop
+    public static final int DEFAULT_MAX_INLINE_DELIVERIES = 16;
+
+    // MessageProducer初始的credit窗口，即未被consumer确认的消息的最大个数
+    public static final int DEFAULT_PRODUCER_WINDOW_SIZE = MessageProducer.DEFAULT_WRITE_QUEUE_MAX_SIZE;
+
+    // consumer每处理多少条消息向producer返还一次credit，0表示窗口的1/4
+    public static final int DEFAULT_CREDIT_BATCH_SIZE = 0;
+
+    // consumer在一个context任务中最多处理的消息个数
+    public static final int DEFAULT_MAX_MAILBOX_DRAIN_BATCH = 64;
+
+    private boolean inlineDelivery;
+    private int maxInlineDeliveries;
+    private int producerWindowSize;
+    private int creditBatchSize;
+    private int maxMailboxDrainBatch;
+    private EventBusMetrics metrics;
+
 
     public EventBusOptions() {
 
@@ -56,6 +79,12 @@ public class EventBusOptions {
 
         connectTimeout = DEFAULT_CONNECT_TIMEOUT;
         trustAll = DEFAULT_TRUST_ALL;
+
+        inlineDelivery = DEFAULT_INLINE_DELIVERY;
+        maxInlineDeliveries = DEFAULT_MAX_INLINE_DELIVERIES;
+        producerWindowSize = DEFAULT_PRODUCER_WINDOW_SIZE;
+        creditBatchSize = DEFAULT_CREDIT_BATCH_SIZE;
+        maxMailboxDrainBatch = DEFAULT_MAX_MAILBOX_DRAIN_BATCH;
     }
 
 
@@ -139,4 +168,53 @@ public class EventBusOptions {
         this.clusterPublicPort = clusterPublicPort;
         return this;
     }
+
+
+    public EventBusOptions setInlineDelivery(boolean inlineDelivery) {
+        this.inlineDelivery = inlineDelivery;
+        return this;
+    }
+
+
+    public EventBusOptions setMaxInlineDeliveries(int maxInlineDeliveries) {
+        if (maxInlineDeliveries < 0) {
+            throw new IllegalArgumentException("maxInlineDeliveries must be >= 0");
+        }
+        this.maxInlineDeliveries = maxInlineDeliveries;
+        return this;
+    }
+
+
+    public EventBusOptions setProducerWindowSize(int producerWindowSize) {
+        if (producerWindowSize < 1) {
+            throw new IllegalArgumentException("producerWindowSize must be > 0");
+        }
+        this.producerWindowSize = producerWindowSize;
+        return this;
+    }
+
+
+    public EventBusOptions setCreditBatchSize(int creditBatchSize) {
+        if (creditBatchSize < 0) {
+            throw new IllegalArgumentException("creditBatchSize must be >= 0");
+        }
+        this.creditBatchSize = creditBatchSize;
+        return this;
+    }
+
+
+    // 事件总线的监控实现，为null时通过SPI加载，找不到则不做统计
+    public EventBusOptions setMetrics(EventBusMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+
+    public EventBusOptions setMaxMailboxDrainBatch(int maxMailboxDrainBatch) {
+        if (maxMailboxDrainBatch < 1) {
+            throw new IllegalArgumentException("maxMailboxDrainBatch must be > 0");
+        }
+        this.maxMailboxDrainBatch = maxMailboxDrainBatch;
+        return this;
+    }
 }
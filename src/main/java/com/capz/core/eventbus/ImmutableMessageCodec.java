@@ -0,0 +1,8 @@
+package com.capz.core.eventbus;
+
+/**
+ * 标记接口：codec处理的类型是不可变的，transform返回的对象可以被多个consumer共享。
+ * 本地发布消息时body只转换一次，所有consumer共享同一个body对象（消息对象和header仍然各自独立）。
+ */
+public interface ImmutableMessageCodec<S, R> extends MessageCodec<S, R> {
+}
@@ -0,0 +1,11 @@
+package com.capz.core.eventbus;
+
+/**
+ * longConsumer的handler，body以long直接传入，sendLong/publishLong发送的消息在本地投递时不装箱
+ */
+@FunctionalInterface
+public interface LongMessageHandler {
+
+    // message用于回复等操作，只有调用message.body()时才会装箱
+    void handle(long body, Message<Long> message);
+}
@@ -16,6 +16,10 @@ public interface Message<T> {
     T body();
 
 
+    /**
+     * 总是返回null：请求和回复通过回复ID关联，不再为每个请求注册回复地址，
+     * 不能通过向某个地址发送消息来回复，回复只能使用reply/fail/replyStream
+     */
     String replyAddress();
 
 
@@ -35,4 +39,9 @@ public interface Message<T> {
 
     void fail(int failureCode, String message);
 
+    /**
+     * 分多条消息回复，只能用于通过EventBus.request发送的请求，否则抛出IllegalStateException
+     */
+    <R> ReplyWriteStream<R> replyStream();
+
 }
\ No newline at end of file
@@ -30,6 +30,22 @@ public interface MessageConsumer<T> {
 
     int getMaxBufferedMessages();
 
+    // 暂停时缓存的消息超过maxBufferedMessages后的处理方式，默认OverflowPolicy.DROP_NEWEST
+    MessageConsumer<T> setOverflowPolicy(OverflowPolicy overflowPolicy);
+
+    OverflowPolicy getOverflowPolicy();
+
+    // send模式下该地址有多个consumer时的选择策略，作用于同一地址上的所有consumer，最后设置的生效
+    MessageConsumer<T> setDeliveryStrategy(DeliveryStrategy deliveryStrategy);
+
+    DeliveryStrategy getDeliveryStrategy();
+
+    // 已经到达但还没有被handler处理的消息个数，用于监控
+    int mailboxDepth();
+
+    // 因为请求方等待回复已经超时（见DeliveryOptions.setTimeout）而没有交给handler、直接丢弃的消息个数
+    long expiredMessages();
+
 
     void completionHandler(Handler<AsyncResult<Void>> completionHandler);
 
@@ -0,0 +1,335 @@
+package com.capz.core.eventbus;
+
+import com.capz.core.buffer.Buffer;
+import io.netty.util.CharsetUtil;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * 消息的header，与CapzHttpHeaders一样同一个name可以有多个value，按加入的顺序保存。
+ * <p>
+ * name和value交替保存在一个数组中，不为每个name创建List。copy()得到的副本与原对象共享数组，
+ * 任何一方修改时才复制（copy-on-write），因此每个接收者可以拿到自己的header而不需要复制数据。
+ * 以Map的形式访问时按name分组，get返回新建的只读List，修改需要使用add/set/put/remove；内部代码应使用getFirst/contains。
+ * <p>
+ * 线上格式：unsigned short 键值对个数，之后每个键值对为 unsigned short name长度 + UTF-8，int value长度 + UTF-8。
+ */
+public class MessageHeaders extends AbstractMap<String, List<String>> {
+
+    private static final String[] NO_ENTRIES = new String[0];
+
+    // entries[2i]是第i个name，entries[2i + 1]是对应的value
+    private String[] entries;
+    private int size;
+    // entries被副本共享，修改之前需要先复制
+    private boolean shared;
+    private Set<Map.Entry<String, List<String>>> entrySet;
+
+    public MessageHeaders() {
+        entries = NO_ENTRIES;
+    }
+
+    private MessageHeaders(String[] entries, int size) {
+        this.entries = entries;
+        this.size = size;
+        this.shared = true;
+    }
+
+    /**
+     * 转换成MessageHeaders：已经是MessageHeaders时返回副本，没有header时返回null，保证没有header的消息不分配对象
+     */
+    public static MessageHeaders copyOf(Map<String, List<String>> headers) {
+        if (headers == null) {
+            return null;
+        }
+        if (headers instanceof MessageHeaders) {
+            MessageHeaders other = (MessageHeaders) headers;
+            return other.size == 0 ? null : other.copy();
+        }
+        if (headers.isEmpty()) {
+            return null;
+        }
+        MessageHeaders result = new MessageHeaders();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            for (String value : entry.getValue()) {
+                result.add(entry.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    // 取name的第一个value，headers可以是任意Map
+    public static String getFirst(Map<String, List<String>> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        if (headers instanceof MessageHeaders) {
+            return ((MessageHeaders) headers).getFirst(name);
+        }
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    // 与原对象共享数据的副本
+    public MessageHeaders copy() {
+        shared = true;
+        return new MessageHeaders(entries, size);
+    }
+
+    public MessageHeaders add(String name, String value) {
+        Objects.requireNonNull(name, "no null name accepted");
+        Objects.requireNonNull(value, "no null value accepted");
+        int index = size << 1;
+        if (shared || index == entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(8, index << 1));
+            shared = false;
+        }
+        entries[index] = name;
+        entries[index + 1] = value;
+        size++;
+        return this;
+    }
+
+    public MessageHeaders set(String name, String value) {
+        remove0(name);
+        return add(name, value);
+    }
+
+    public String getFirst(String name) {
+        for (int i = 0; i < size; i++) {
+            if (entries[i << 1].equals(name)) {
+                return entries[(i << 1) + 1];
+            }
+        }
+        return null;
+    }
+
+    public List<String> getAll(String name) {
+        List<String> values = null;
+        for (int i = 0; i < size; i++) {
+            if (entries[i << 1].equals(name)) {
+                if (values == null) {
+                    values = new ArrayList<>(2);
+                }
+                values.add(entries[(i << 1) + 1]);
+            }
+        }
+        // 返回的List与header分离，不允许修改，避免修改被静默丢弃
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList(values);
+    }
+
+    public boolean contains(String name) {
+        return getFirst(name) != null;
+    }
+
+    // 按加入的顺序遍历每个键值对
+    public void forEachEntry(BiConsumer<? super String, ? super String> action) {
+        // 遍历期间action可能修改header，先取出当前的数组
+        String[] current = entries;
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            action.accept(current[i << 1], current[(i << 1) + 1]);
+        }
+    }
+
+    // 键值对的个数，size()是不同name的个数
+    public int entryCount() {
+        return size;
+    }
+
+    @Override
+    public int size() {
+        if (size <= 1) {
+            return size;
+        }
+        Set<String> names = new HashSet<>(size << 1);
+        for (int i = 0; i < size; i++) {
+            names.add(entries[i << 1]);
+        }
+        return names.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && contains((String) key);
+    }
+
+    @Override
+    public List<String> get(Object key) {
+        if (!(key instanceof String) || !contains((String) key)) {
+            return null;
+        }
+        return getAll((String) key);
+    }
+
+    @Override
+    public List<String> put(String key, List<String> values) {
+        Objects.requireNonNull(values, "no null values accepted");
+        List<String> previous = remove(key);
+        for (String value : values) {
+            add(key, value);
+        }
+        return previous;
+    }
+
+    @Override
+    public List<String> remove(Object key) {
+        List<String> previous = get(key);
+        if (previous != null) {
+            remove0((String) key);
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        entries = NO_ENTRIES;
+        size = 0;
+        shared = false;
+    }
+
+    @Override
+    public Set<Map.Entry<String, List<String>>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    public void encodeToWire(Buffer buffer) {
+        if (size > 0xFFFF) {
+            throw new IllegalStateException("Too many headers: " + size);
+        }
+        buffer.appendUnsignedShort(size);
+        for (int i = 0; i < size; i++) {
+            byte[] name = entries[i << 1].getBytes(CharsetUtil.UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IllegalStateException("Header name too long: " + entries[i << 1]);
+            }
+            buffer.appendUnsignedShort(name.length);
+            buffer.appendBytes(name);
+            byte[] value = entries[(i << 1) + 1].getBytes(CharsetUtil.UTF_8);
+            buffer.appendInt(value.length);
+            buffer.appendBytes(value);
+        }
+    }
+
+    // 从pos开始解码追加到本对象，返回解码之后的位置
+    public int decodeFromWire(int pos, Buffer buffer) {
+        int count = buffer.getUnsignedShort(pos);
+        pos += 2;
+        if (count > 0) {
+            String[] decoded = Arrays.copyOf(entries, (size + count) << 1);
+            for (int i = size; i < size + count; i++) {
+                int length = buffer.getUnsignedShort(pos);
+                pos += 2;
+                decoded[i << 1] = buffer.getString(pos, pos + length);
+                pos += length;
+                length = buffer.getInt(pos);
+                pos += 4;
+                decoded[(i << 1) + 1] = buffer.getString(pos, pos + length);
+                pos += length;
+            }
+            entries = decoded;
+            size += count;
+            shared = false;
+        }
+        return pos;
+    }
+
+    // 一次遍历按name分组，name的顺序为第一次加入的顺序
+    private Map<String, List<String>> group() {
+        Map<String, List<String>> grouped = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            grouped.computeIfAbsent(entries[i << 1], k -> new ArrayList<>(2)).add(entries[(i << 1) + 1]);
+        }
+        return grouped;
+    }
+
+    private int firstIndexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (entries[i << 1].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void remove0(String name) {
+        int first = firstIndexOf(name);
+        if (first < 0) {
+            return;
+        }
+        String[] result = shared ? new String[entries.length] : entries;
+        if (shared) {
+            System.arraycopy(entries, 0, result, 0, first << 1);
+        }
+        int n = first;
+        for (int i = first; i < size; i++) {
+            if (!entries[i << 1].equals(name)) {
+                result[n << 1] = entries[i << 1];
+                result[(n << 1) + 1] = entries[(i << 1) + 1];
+                n++;
+            }
+        }
+        Arrays.fill(result, n << 1, size << 1, null);
+        entries = result;
+        size = n;
+        shared = false;
+    }
+
+    // 按name分组的视图，迭代时先分组一次，遍历期间的修改只能通过迭代器的remove
+    private class EntrySet extends AbstractSet<Map.Entry<String, List<String>>> {
+
+        @Override
+        public Iterator<Map.Entry<String, List<String>>> iterator() {
+            Iterator<Map.Entry<String, List<String>>> grouped = group().entrySet().iterator();
+            return new Iterator<Map.Entry<String, List<String>>>() {
+                private String last;
+
+                @Override
+                public boolean hasNext() {
+                    return grouped.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, List<String>> next() {
+                    Map.Entry<String, List<String>> entry = grouped.next();
+                    last = entry.getKey();
+                    return new SimpleImmutableEntry<>(last, Collections.unmodifiableList(entry.getValue()));
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+                    remove0(last);
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return MessageHeaders.this.size();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.capz.core.eventbus;
+
+/**
+ * consumer暂停时缓存的消息超过maxBufferedMessages后的处理方式。
+ * 被丢弃的消息会交给consumer的discardHandler（如果设置了的话）。
+ */
+public enum OverflowPolicy {
+
+    // 丢弃新到的消息
+    DROP_NEWEST,
+
+    // 丢弃最早缓存的消息
+    DROP_OLDEST,
+
+    // 来自MessageProducer的消息不丢弃，由producer的credit窗口限制缓存的数量；其他消息丢弃新到的
+    CREDITS
+}
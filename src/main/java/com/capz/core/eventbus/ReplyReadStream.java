@@ -0,0 +1,31 @@
+package com.capz.core.eventbus;
+
+import com.capz.core.Handler;
+import com.capz.core.streams.ReadStream;
+
+/**
+ * 请求方读取分多条消息的回复，见{@link EventBus#request(String, Object)}。
+ * <p>
+ * 回复方正常结束时调用endHandler；没有consumer、超时或者回复方失败时调用exceptionHandler。
+ * 回复方只用reply回复了一条消息时，这条消息作为唯一的一条交给handler。
+ */
+public interface ReplyReadStream<T> extends ReadStream<Message<T>> {
+
+    @Override
+    ReplyReadStream<T> handler(Handler<Message<T>> handler);
+
+    @Override
+    ReplyReadStream<T> pause();
+
+    @Override
+    ReplyReadStream<T> resume();
+
+    @Override
+    ReplyReadStream<T> endHandler(Handler<Void> endHandler);
+
+    @Override
+    ReplyReadStream<T> exceptionHandler(Handler<Throwable> handler);
+
+    // 不再接收回复，并通知回复方停止发送；之后不再调用任何handler
+    void cancel();
+}
@@ -0,0 +1,22 @@
+package com.capz.core.eventbus;
+
+import com.capz.core.Handler;
+import com.capz.core.streams.WriteStream;
+
+/**
+ * 分多条消息回复一个请求，见{@link Message#replyStream()}。
+ * <p>
+ * 基于credit做流控，请求方暂停读取时writeQueueFull()返回true，可以直接用于Pump。
+ * 请求方取消时调用exceptionHandler，之后的写入被忽略。
+ */
+public interface ReplyWriteStream<T> extends WriteStream<T> {
+
+    @Override
+    ReplyWriteStream<T> write(T data);
+
+    // 以失败结束，请求方的exceptionHandler收到RECIPIENT_FAILURE类型的ReplyException
+    void fail(int failureCode, String message);
+
+    @Override
+    ReplyWriteStream<T> exceptionHandler(Handler<Throwable> handler);
+}
@@ -0,0 +1,31 @@
+package com.capz.core.eventbus;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 请求合并的key，见{@link EventBus#singleFlight(String, SingleFlightKey, long)}。
+ * key按equals和hashCode比较，返回null表示这个请求不参与合并。
+ */
+@FunctionalInterface
+public interface SingleFlightKey {
+
+    // body是发送时的body，还没有经过codec转换
+    Object key(Object body, Map<String, List<String>> headers);
+
+    // 以body本身为key，适用于String、数字等实现了equals的body
+    static SingleFlightKey body() {
+        return (body, headers) -> body;
+    }
+
+    // 以header的第一个值为key，没有这个header的请求不合并
+    static SingleFlightKey header(String name) {
+        return (body, headers) -> {
+            if (headers == null) {
+                return null;
+            }
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        };
+    }
+}
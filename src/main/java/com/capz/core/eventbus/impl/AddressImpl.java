@@ -0,0 +1,58 @@
+package com.capz.core.eventbus.impl;
+
+import com.capz.core.eventbus.Address;
+
+/**
+ * 地址句柄，保存解析好的Handlers和匹配的模式。
+ * 解析结果带有解析时EventBusImpl的地址表版本，地址表的结构（地址或模式的增删）变化后下次使用时重新解析；
+ * 已有地址上consumer的增减直接体现在Handlers对象上，不需要重新解析。
+ */
+class AddressImpl implements Address {
+
+    private final EventBusImpl bus;
+    private final String address;
+    private volatile Resolved resolved;
+
+    AddressImpl(EventBusImpl bus, String address) {
+        this.bus = bus;
+        this.address = address;
+    }
+
+    EventBusImpl bus() {
+        return bus;
+    }
+
+    @Override
+    public String address() {
+        return address;
+    }
+
+    Resolved resolve() {
+        Resolved current = resolved;
+        int version = bus.handlersVersion();
+        if (current == null || current.version != version) {
+            // 先读版本再查找，期间发生的变化会使下一次使用重新解析
+            current = new Resolved(version, bus.handlerMap.get(address), bus.patternHandlers.match(address));
+            resolved = current;
+        }
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+
+    static final class Resolved {
+
+        final int version;
+        final Handlers handlers;
+        final Handlers[] matched;
+
+        Resolved(int version, Handlers handlers, Handlers[] matched) {
+            this.version = version;
+            this.handlers = handlers;
+            this.matched = matched;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.capz.core.eventbus.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 通配符地址的订阅，地址按'.'分段，'*'匹配一个分段，'#'匹配零个或多个分段，
+ * 例如orders.*.created、metrics.#。
+ * <p>
+ * 模式保存在按分段组织的trie中。某个地址匹配到的Handlers会缓存起来，模式增加或删除时清空缓存；
+ * 没有任何模式订阅时不做任何匹配。修改和缓存未命中时的匹配都在trie的锁内进行。
+ */
+class AddressTrie {
+
+    static final String SINGLE_WILDCARD = "*";
+    static final String MULTI_WILDCARD = "#";
+
+    private static final Handlers[] NO_MATCH = new Handlers[0];
+    // 缓存的地址个数上限，超过后清空，避免一次性地址把缓存撑大
+    private static final int MAX_CACHED_ADDRESSES = 10000;
+
+    private final Node root = new Node();
+    private final ConcurrentMap<String, Handlers[]> cache = new ConcurrentHashMap<>();
+    private volatile int patterns;
+
+    static boolean isPattern(String address) {
+        if (address.indexOf('*') < 0 && address.indexOf('#') < 0) {
+            return false;
+        }
+        for (String segment : split(address)) {
+            if (SINGLE_WILDCARD.equals(segment) || MULTI_WILDCARD.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 单个模式是否匹配address，用于不需要trie的场合
+    static boolean matches(String pattern, String address) {
+        return matches(split(pattern), 0, split(address), 0);
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] address, int a) {
+        if (p == pattern.length) {
+            return a == address.length;
+        }
+        if (MULTI_WILDCARD.equals(pattern[p])) {
+            for (int i = a; i <= address.length; i++) {
+                if (matches(pattern, p + 1, address, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (a == address.length) {
+            return false;
+        }
+        return (SINGLE_WILDCARD.equals(pattern[p]) || pattern[p].equals(address[a]))
+                && matches(pattern, p + 1, address, a + 1);
+    }
+
+    // 返回匹配address的所有模式的Handlers，没有时返回空数组
+    Handlers[] match(String address) {
+        if (patterns == 0) {
+            return NO_MATCH;
+        }
+        Handlers[] matched = cache.get(address);
+        if (matched != null) {
+            return matched;
+        }
+        synchronized (this) {
+            List<Handlers> result = new ArrayList<>(2);
+            match(root, split(address), 0, result);
+            matched = result.isEmpty() ? NO_MATCH : result.toArray(new Handlers[result.size()]);
+            if (cache.size() >= MAX_CACHED_ADDRESSES) {
+                cache.clear();
+            }
+            cache.put(address, matched);
+            return matched;
+        }
+    }
+
+    // 返回是否是新的模式
+    synchronized boolean add(String pattern, HandlerHolder holder) {
+        Node node = root;
+        for (String segment : split(pattern)) {
+            node = node.children.computeIfAbsent(segment, s -> new Node());
+        }
+        boolean newPattern = node.handlers == null;
+        if (newPattern) {
+            node.handlers = new Handlers();
+            patterns++;
+            cache.clear();
+        }
+        node.handlers.add(holder);
+        return newPattern;
+    }
+
+    // 模式对应的Handlers，没有时返回null
+    synchronized Handlers handlers(String pattern) {
+        Node node = root;
+        for (String segment : split(pattern)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.handlers;
+    }
+
+    // 返回被删除的holder，删除的是该模式的最后一个handler时lastHolder为true
+    synchronized HandlerHolder remove(String pattern, HandlerRegistration<?> registration, boolean[] last) {
+        String[] segments = split(pattern);
+        Node[] path = new Node[segments.length + 1];
+        path[0] = root;
+        for (int i = 0; i < segments.length; i++) {
+            path[i + 1] = path[i].children.get(segments[i]);
+            if (path[i + 1] == null) {
+                return null;
+            }
+        }
+        Node node = path[segments.length];
+        if (node.handlers == null) {
+            return null;
+        }
+        HandlerHolder removed = null;
+        for (HandlerHolder holder : node.handlers.list) {
+            if (holder.getHandler() == registration) {
+                removed = holder;
+                break;
+            }
+        }
+        if (removed == null) {
+            return null;
+        }
+        node.handlers.remove(removed);
+        if (node.handlers.list.isEmpty()) {
+            last[0] = true;
+            node.handlers = null;
+            patterns--;
+            cache.clear();
+            // 删除不再需要的节点
+            for (int i = segments.length; i > 0 && path[i].handlers == null && path[i].children.isEmpty(); i--) {
+                path[i - 1].children.remove(segments[i - 1]);
+            }
+        }
+        return removed;
+    }
+
+    synchronized List<Handlers> allHandlers() {
+        List<Handlers> result = new ArrayList<>();
+        collect(root, result);
+        return result;
+    }
+
+    private static void collect(Node node, List<Handlers> result) {
+        if (node.handlers != null) {
+            result.add(node.handlers);
+        }
+        for (Node child : node.children.values()) {
+            collect(child, result);
+        }
+    }
+
+    private static void match(Node node, String[] segments, int pos, List<Handlers> result) {
+        Node multi = node.children.get(MULTI_WILDCARD);
+        if (multi != null) {
+            // '#'可以吃掉之后任意多个分段
+            for (int i = pos; i <= segments.length; i++) {
+                match(multi, segments, i, result);
+            }
+        }
+        if (pos == segments.length) {
+            if (node.handlers != null && !result.contains(node.handlers)) {
+                result.add(node.handlers);
+            }
+            return;
+        }
+        Node child = node.children.get(segments[pos]);
+        if (child != null) {
+            match(child, segments, pos + 1, result);
+        }
+        Node single = node.children.get(SINGLE_WILDCARD);
+        if (single != null) {
+            match(single, segments, pos + 1, result);
+        }
+    }
+
+    private static String[] split(String address) {
+        return address.split("\\.", -1);
+    }
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>(4);
+        Handlers handlers;
+    }
+}
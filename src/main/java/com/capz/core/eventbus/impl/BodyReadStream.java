@@ -0,0 +1,46 @@
+package com.capz.core.eventbus.impl;
+
+import com.capz.core.Handler;
+import com.capz.core.eventbus.Message;
+import com.capz.core.streams.ReadStream;
+
+// 把consumer收到的消息的body作为ReadStream，暂停和恢复直接作用于consumer
+class BodyReadStream<T> implements ReadStream<T> {
+
+    private final HandlerRegistration<T> consumer;
+
+    BodyReadStream(HandlerRegistration<T> consumer) {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public ReadStream<T> handler(Handler<T> handler) {
+        Handler<Message<T>> messageHandler = handler == null ? null : message -> handler.handle(message.body());
+        consumer.handler(messageHandler);
+        return this;
+    }
+
+    @Override
+    public ReadStream<T> pause() {
+        consumer.pause();
+        return this;
+    }
+
+    @Override
+    public ReadStream<T> resume() {
+        consumer.resume();
+        return this;
+    }
+
+    @Override
+    public ReadStream<T> endHandler(Handler<Void> endHandler) {
+        consumer.endHandler(endHandler);
+        return this;
+    }
+
+    @Override
+    public ReadStream<T> exceptionHandler(Handler<Throwable> handler) {
+        consumer.exceptionHandler(handler);
+        return this;
+    }
+}
@@ -22,10 +22,21 @@ import com.capz.core.eventbus.impl.codecs.ReplyExceptionMessageCodec;
 import com.capz.core.eventbus.impl.codecs.ShortMessageCodec;
 import com.capz.core.eventbus.impl.codecs.StringMessageCodec;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+/**
+ * 消息codec的查找。按body类型查找的结果缓存在ClassValue中，子类和实现了接口的类型也能找到
+ * 为父类或接口注册的codec；地址可以绑定codec，发送到该地址的消息不需要再查找。
+ */
 public class CodecManager {
 
     // The standard message codecs
@@ -46,60 +57,136 @@ public class CodecManager {
     public static final MessageCodec<JSONObject, JSONObject> JSON_OBJECT_MESSAGE_CODEC = new JSONObjectMessageCodec();
     public static final MessageCodec<JSONArray, JSONArray> JSON_ARRAY_MESSAGE_CODEC = new JSONArrayMessageCodec();
 
+    // body的类型就是这些类型时直接使用对应的系统codec，用户注册的默认codec不能覆盖
+    private static final Map<Class, MessageCodec> BUILTIN_CODECS = new HashMap<>();
+    // 查找结果的缓存中表示没有codec
+    private static final MessageCodec NO_CODEC = new NullMessageCodec();
+
+    static {
+        BUILTIN_CODECS.put(String.class, STRING_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Buffer.class, BUFFER_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(JSONObject.class, JSON_OBJECT_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(JSONArray.class, JSON_ARRAY_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(byte[].class, BYTE_ARRAY_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Integer.class, INT_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Long.class, LONG_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Float.class, FLOAT_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Double.class, DOUBLE_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Boolean.class, BOOLEAN_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Short.class, SHORT_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Character.class, CHAR_MESSAGE_CODEC);
+        BUILTIN_CODECS.put(Byte.class, BYTE_MESSAGE_CODEC);
+    }
+
     private final MessageCodec[] systemCodecs;
     private final ConcurrentMap<String, MessageCodec> userCodecMap = new ConcurrentHashMap<>();
     private final ConcurrentMap<Class, MessageCodec> defaultCodecMap = new ConcurrentHashMap<>();
+    // 绑定了codec的地址，发送到这些地址且没有指定codecName的消息直接使用绑定的codec
+    private final ConcurrentMap<String, MessageCodec> addressCodecMap = new ConcurrentHashMap<>();
+    // 按body的类型缓存查找结果，默认codec变化时整体替换
+    private volatile ClassValue<MessageCodec> resolvedCodecs = newResolvedCodecs();
 
     public CodecManager() {
-        this.systemCodecs = codecs(NULL_MESSAGE_CODEC, PING_MESSAGE_CODEC, STRING_MESSAGE_CODEC, BUFFER_MESSAGE_CODEC,JSON_OBJECT_MESSAGE_CODEC,
-                JSON_OBJECT_MESSAGE_CODEC,BYTE_ARRAY_MESSAGE_CODEC, INT_MESSAGE_CODEC, LONG_MESSAGE_CODEC, FLOAT_MESSAGE_CODEC, DOUBLE_MESSAGE_CODEC,
+        this.systemCodecs = codecs(NULL_MESSAGE_CODEC, PING_MESSAGE_CODEC, STRING_MESSAGE_CODEC, BUFFER_MESSAGE_CODEC, JSON_OBJECT_MESSAGE_CODEC,
+                JSON_ARRAY_MESSAGE_CODEC, BYTE_ARRAY_MESSAGE_CODEC, INT_MESSAGE_CODEC, LONG_MESSAGE_CODEC, FLOAT_MESSAGE_CODEC, DOUBLE_MESSAGE_CODEC,
                 BOOLEAN_MESSAGE_CODEC, SHORT_MESSAGE_CODEC, CHAR_MESSAGE_CODEC, BYTE_MESSAGE_CODEC, REPLY_EXCEPTION_MESSAGE_CODEC);
     }
 
     public MessageCodec lookupCodec(Object body, String codecName) {
+        return lookupCodec(null, body, codecName);
+    }
 
+    // address可以为null（回复消息）
+    public MessageCodec lookupCodec(String address, Object body, String codecName) {
         MessageCodec codec;
         if (codecName != null) {
             codec = userCodecMap.get(codecName);
             if (codec == null) {
                 throw new IllegalArgumentException("No message codec for name: " + codecName);
             }
-        } else if (body == null) {
-            codec = NULL_MESSAGE_CODEC;
-        } else if (body instanceof String) {
-            codec = STRING_MESSAGE_CODEC;
-        } else if (body instanceof Buffer) {
-            codec = BUFFER_MESSAGE_CODEC;
-        } else if (body instanceof byte[]) {
-            codec = BYTE_ARRAY_MESSAGE_CODEC;
-        } else if (body instanceof Integer) {
-            codec = INT_MESSAGE_CODEC;
-        } else if (body instanceof Long) {
-            codec = LONG_MESSAGE_CODEC;
-        } else if (body instanceof Float) {
-            codec = FLOAT_MESSAGE_CODEC;
-        } else if (body instanceof Double) {
-            codec = DOUBLE_MESSAGE_CODEC;
-        } else if (body instanceof Boolean) {
-            codec = BOOLEAN_MESSAGE_CODEC;
-        } else if (body instanceof Short) {
-            codec = SHORT_MESSAGE_CODEC;
-        } else if (body instanceof Character) {
-            codec = CHAR_MESSAGE_CODEC;
-        } else if (body instanceof Byte) {
-            codec = BYTE_MESSAGE_CODEC;
-        } else if (body instanceof ReplyException) {
-            codec = defaultCodecMap.get(body.getClass());
-            if (codec == null) {
-                codec = REPLY_EXCEPTION_MESSAGE_CODEC;
+            return codec;
+        }
+        if (address != null && !addressCodecMap.isEmpty()) {
+            codec = addressCodecMap.get(address);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        if (body == null) {
+            return NULL_MESSAGE_CODEC;
+        }
+        codec = resolvedCodecs.get(body.getClass());
+        if (codec == NO_CODEC) {
+            throw new IllegalArgumentException("No message codec for type: " + body.getClass());
+        }
+        return codec;
+    }
+
+    // 依次查找类本身、父类和接口，找不到时返回NO_CODEC
+    private MessageCodec resolve(Class<?> clazz) {
+        MessageCodec codec = BUILTIN_CODECS.get(clazz);
+        if (codec != null) {
+            return codec;
+        }
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            codec = defaultCodecMap.get(c);
+            if (codec != null) {
+                return codec;
+            }
+            if (c == ReplyException.class) {
+                return REPLY_EXCEPTION_MESSAGE_CODEC;
             }
-        } else {
-            codec = defaultCodecMap.get(body.getClass());
+            codec = BUILTIN_CODECS.get(c);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        // 接口按广度优先查找，离clazz近的接口优先
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        Set<Class<?>> visited = new HashSet<>();
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            Collections.addAll(queue, c.getInterfaces());
+        }
+        while (!queue.isEmpty()) {
+            Class<?> iface = queue.poll();
+            if (!visited.add(iface)) {
+                continue;
+            }
+            codec = defaultCodecMap.get(iface);
             if (codec == null) {
-                throw new IllegalArgumentException("No message codec for type: " + body.getClass());
+                codec = BUILTIN_CODECS.get(iface);
             }
+            if (codec != null) {
+                return codec;
+            }
+            Collections.addAll(queue, iface.getInterfaces());
         }
-        return codec;
+        return NO_CODEC;
+    }
+
+    private ClassValue<MessageCodec> newResolvedCodecs() {
+        return new ClassValue<MessageCodec>() {
+            @Override
+            protected MessageCodec computeValue(Class<?> type) {
+                return resolve(type);
+            }
+        };
+    }
+
+    // 发送到address且没有指定codecName的消息使用codecName对应的codec，不再按body的类型查找
+    public void bindCodec(String address, String codecName) {
+        Objects.requireNonNull(address, "address");
+        Objects.requireNonNull(codecName, "codecName");
+        MessageCodec codec = userCodecMap.get(codecName);
+        if (codec == null) {
+            throw new IllegalArgumentException("No message codec for name: " + codecName);
+        }
+        addressCodecMap.put(address, codec);
+    }
+
+    public void unbindCodec(String address) {
+        Objects.requireNonNull(address, "address");
+        addressCodecMap.remove(address);
     }
 
     public MessageCodec getCodec(String codecName) {
@@ -118,7 +205,10 @@ public class CodecManager {
 
     public void unregisterCodec(String name) {
         Objects.requireNonNull(name);
-        userCodecMap.remove(name);
+        MessageCodec codec = userCodecMap.remove(name);
+        if (codec != null) {
+            addressCodecMap.values().removeIf(bound -> bound == codec);
+        }
     }
 
     public <T> void registerDefaultCodec(Class<T> clazz, MessageCodec<T, ?> codec) {
@@ -134,13 +224,15 @@ public class CodecManager {
         }
         defaultCodecMap.put(clazz, codec);
         userCodecMap.put(codec.name(), codec);
+        resolvedCodecs = newResolvedCodecs();
     }
 
     public void unregisterDefaultCodec(Class clazz) {
         Objects.requireNonNull(clazz);
         MessageCodec codec = defaultCodecMap.remove(clazz);
         if (codec != null) {
-            userCodecMap.remove(codec.name());
+            unregisterCodec(codec.name());
+            resolvedCodecs = newResolvedCodecs();
         }
     }
 
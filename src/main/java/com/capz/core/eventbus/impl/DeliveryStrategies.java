@@ -0,0 +1,122 @@
+package com.capz.core.eventbus.impl;
+
+import com.capz.core.eventbus.DeliveryStrategy;
+import com.capz.core.eventbus.Message;
+import com.capz.core.eventbus.MessageConsumer;
+import com.capz.core.eventbus.MessageHeaders;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 内置的{@link DeliveryStrategy}
+ */
+public final class DeliveryStrategies {
+
+    private DeliveryStrategies() {
+    }
+
+    public static class RoundRobin implements DeliveryStrategy {
+
+        private final AtomicInteger pos = new AtomicInteger();
+
+        @Override
+        public int choose(Message<?> message, List<MessageConsumer<?>> consumers) {
+            return next(pos, consumers.size());
+        }
+    }
+
+    public static class LeastPending implements DeliveryStrategy {
+
+        // 从轮转的位置开始找，待处理消息数相同时不会总是选中第一个
+        private final AtomicInteger pos = new AtomicInteger();
+
+        @Override
+        public int choose(Message<?> message, List<MessageConsumer<?>> consumers) {
+            int size = consumers.size();
+            int start = next(pos, size);
+            int chosen = start;
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % size;
+                int depth = consumers.get(index).mailboxDepth();
+                if (depth < min) {
+                    min = depth;
+                    chosen = index;
+                    if (depth == 0) {
+                        break;
+                    }
+                }
+            }
+            return chosen;
+        }
+    }
+
+    public static class PowerOfTwoChoices implements DeliveryStrategy {
+
+        public static final PowerOfTwoChoices INSTANCE = new PowerOfTwoChoices();
+
+        @Override
+        public int choose(Message<?> message, List<MessageConsumer<?>> consumers) {
+            int size = consumers.size();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(size);
+            // 第二个从其余的consumer中选，保证两个不同
+            int second = (first + 1 + random.nextInt(size - 1)) % size;
+            return consumers.get(second).mailboxDepth() < consumers.get(first).mailboxDepth() ? second : first;
+        }
+    }
+
+    /**
+     * 使用rendezvous哈希：对每个consumer计算(key, consumer)的分数，取分数最高的。
+     * consumer增减时只有落在该consumer上的key会改变去向。
+     */
+    public static class StickyByHeader implements DeliveryStrategy {
+
+        private final String headerName;
+        private final AtomicInteger pos = new AtomicInteger();
+
+        public StickyByHeader(String headerName) {
+            this.headerName = Objects.requireNonNull(headerName, "headerName");
+        }
+
+        @Override
+        public int choose(Message<?> message, List<MessageConsumer<?>> consumers) {
+            String key = key(message);
+            if (key == null) {
+                return next(pos, consumers.size());
+            }
+            int keyHash = key.hashCode();
+            int chosen = 0;
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < consumers.size(); i++) {
+                int score = mix(keyHash ^ System.identityHashCode(consumers.get(i)) * 0x9E3779B9);
+                if (score > max || i == 0) {
+                    max = score;
+                    chosen = i;
+                }
+            }
+            return chosen;
+        }
+
+        private String key(Message<?> message) {
+            return MessageHeaders.getFirst(message.headers(), headerName);
+        }
+
+        // murmur3的finalizer
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    static int next(AtomicInteger pos, int size) {
+        return (pos.getAndIncrement() & Integer.MAX_VALUE) % size;
+    }
+}
@@ -0,0 +1,39 @@
+package com.capz.core.eventbus.impl;
+
+/**
+ * sendDouble/publishDouble发送的消息，值保存在double字段中，本地投递时不装箱也不调用codec的transform。
+ * 只有在普通consumer调用body()时才装箱，发往其他节点时仍然使用double codec。
+ */
+class DoubleMessageImpl extends MessageImpl<Double, Double> {
+
+    final double value;
+
+    DoubleMessageImpl(String address, double value, boolean send, EventBusImpl bus) {
+        super(address, null, null, null, CodecManager.DOUBLE_MESSAGE_CODEC, send, bus);
+        this.value = value;
+    }
+
+    private DoubleMessageImpl(DoubleMessageImpl other) {
+        super(other);
+        this.value = other.value;
+    }
+
+    @Override
+    public Double body() {
+        if (receivedBody == null) {
+            receivedBody = value;
+        }
+        return receivedBody;
+    }
+
+    @Override
+    public MessageImpl<Double, Double> copyBeforeReceive(boolean singleReceiver) {
+        // 每个接收者一个消息对象，header和回复状态各自独立，只复制值
+        return new DoubleMessageImpl(this);
+    }
+
+    @Override
+    protected Object sentBody() {
+        return body();
+    }
+}
@@ -5,28 +5,42 @@ import com.capz.core.Capz;
 import com.capz.core.CapzInternal;
 import com.capz.core.Closeable;
 import com.capz.core.Context;
-import com.capz.core.Exception.ReplyException;
 import com.capz.core.Handler;
+import com.capz.core.ServiceHelper;
+import com.capz.core.eventbus.Address;
 import com.capz.core.eventbus.DeliveryOptions;
+import com.capz.core.eventbus.DeliveryStrategy;
+import com.capz.core.eventbus.DoubleMessageHandler;
 import com.capz.core.eventbus.EventBus;
+import com.capz.core.eventbus.EventBusOptions;
+import com.capz.core.eventbus.ImmutableMessageCodec;
+import com.capz.core.eventbus.LongMessageHandler;
 import com.capz.core.eventbus.Message;
 import com.capz.core.eventbus.MessageCodec;
 import com.capz.core.eventbus.MessageConsumer;
 import com.capz.core.eventbus.MessageProducer;
 import com.capz.core.eventbus.ReplyFailure;
+import com.capz.core.eventbus.ReplyReadStream;
 import com.capz.core.eventbus.SendContext;
+import com.capz.core.eventbus.SingleFlightKey;
+import com.capz.core.impl.AbstractContext;
 import com.capz.core.impl.Future;
+import com.capz.core.spi.metrics.EventBusMetrics;
+import io.netty.channel.EventLoop;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Bao Qingping
@@ -35,27 +49,75 @@ public class EventBusImpl implements EventBus {
 
     private static final Logger log = LoggerFactory.getLogger(EventBusImpl.class);
 
-    private final List<Handler<SendContext>> interceptors = new CopyOnWriteArrayList<>();
-    private final AtomicLong replySequence = new AtomicLong(0);
+    private static final Interceptor[] NO_INTERCEPTORS = new Interceptor[0];
+    // sendLong等方法共用的DeliveryOptions，发送过程中只读取不修改
+    private static final DeliveryOptions DEFAULT_PRIMITIVE_OPTIONS = new DeliveryOptions();
+
+    // 拦截器的快照，增删时整体替换，发送时不需要加锁也不需要创建迭代器
+    private volatile Interceptor[] interceptors = NO_INTERCEPTORS;
 
     protected final ConcurrentMap<String, Handlers> handlerMap = new ConcurrentHashMap<>();
+    // 带通配符的地址不放在handlerMap中，精确地址的查找仍然只需要一次map查询
+    protected final AddressTrie patternHandlers = new AddressTrie();
+    // 地址表的结构版本，增删地址或模式时加一，地址句柄据此判断是否需要重新解析
+    private final AtomicInteger handlersVersion = new AtomicInteger();
+    private final ConcurrentMap<String, AddressImpl> addresses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SingleFlight> singleFlights = new ConcurrentHashMap<>();
     protected final CodecManager codecManager = new CodecManager();
     protected volatile boolean started;
     protected final CapzInternal capzInternal;
+    private final boolean inlineDelivery;
+    private final int maxInlineDeliveries;
+    private final ReplyCorrelator replyCorrelator;
+    private final int producerWindowSize;
+    private final int creditBatchSize;
+    private final int maxMailboxDrainBatch;
+    // 没有安装监控时为null
+    protected final EventBusMetrics metrics;
 
     public EventBusImpl(CapzInternal capzInternal) {
+        this(capzInternal, new EventBusOptions());
+    }
+
+    public EventBusImpl(CapzInternal capzInternal, EventBusOptions options) {
         this.capzInternal = capzInternal;
+        this.inlineDelivery = options.isInlineDelivery();
+        this.maxInlineDeliveries = options.getMaxInlineDeliveries();
+        this.producerWindowSize = options.getProducerWindowSize();
+        this.creditBatchSize = options.getCreditBatchSize();
+        this.maxMailboxDrainBatch = options.getMaxMailboxDrainBatch();
+        EventBusMetrics theMetrics = options.getMetrics();
+        if (theMetrics == null) {
+            theMetrics = ServiceHelper.loadFactoryOrNull(EventBusMetrics.class);
+        }
+        this.metrics = theMetrics;
+        this.replyCorrelator = new ReplyCorrelator(capzInternal.getEventLoopGroup(), capzInternal.timerService(), metrics);
     }
 
     @Override
     public EventBus addInterceptor(Handler<SendContext> interceptor) {
-        interceptors.add(interceptor);
+        return addInterceptor(null, interceptor);
+    }
+
+    @Override
+    public synchronized EventBus addInterceptor(String addressPattern, Handler<SendContext> interceptor) {
+        Objects.requireNonNull(interceptor, "interceptor");
+        Interceptor[] current = interceptors;
+        Interceptor[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new Interceptor(addressPattern, interceptor);
+        interceptors = updated;
         return this;
     }
 
     @Override
-    public EventBus removeInterceptor(Handler<SendContext> interceptor) {
-        interceptors.remove(interceptor);
+    public synchronized EventBus removeInterceptor(Handler<SendContext> interceptor) {
+        List<Interceptor> remaining = new ArrayList<>(interceptors.length);
+        for (Interceptor entry : interceptors) {
+            if (!entry.handler.equals(interceptor)) {
+                remaining.add(entry);
+            }
+        }
+        interceptors = remaining.isEmpty() ? NO_INTERCEPTORS : remaining.toArray(new Interceptor[remaining.size()]);
         return this;
     }
 
@@ -89,30 +151,148 @@ public class EventBusImpl implements EventBus {
         return this;
     }
 
+    @Override
+    public <T> ReplyReadStream<T> request(String address, Object message) {
+        return request(address, message, new DeliveryOptions());
+    }
+
+    @Override
+    public <T> ReplyReadStream<T> request(String address, Object message, DeliveryOptions options) {
+        checkStarted();
+        Objects.requireNonNull(address, "address");
+        return new ReplyReadStreamImpl<>(this, address, message, options);
+    }
+
+    @Override
+    public EventBus sendLong(String address, long value) {
+        sendOrPubInternal(newLongMessage(true, address, value), DEFAULT_PRIMITIVE_OPTIONS, null);
+        return this;
+    }
+
+    @Override
+    public EventBus publishLong(String address, long value) {
+        sendOrPubInternal(newLongMessage(false, address, value), DEFAULT_PRIMITIVE_OPTIONS, null);
+        return this;
+    }
+
+    @Override
+    public EventBus sendDouble(String address, double value) {
+        sendOrPubInternal(newDoubleMessage(true, address, value), DEFAULT_PRIMITIVE_OPTIONS, null);
+        return this;
+    }
+
+    @Override
+    public EventBus publishDouble(String address, double value) {
+        sendOrPubInternal(newDoubleMessage(false, address, value), DEFAULT_PRIMITIVE_OPTIONS, null);
+        return this;
+    }
+
+    @Override
+    public EventBus singleFlight(String address, SingleFlightKey key) {
+        return singleFlight(address, key, 0);
+    }
+
+    @Override
+    public EventBus singleFlight(String address, SingleFlightKey key, long replyTtl) {
+        Objects.requireNonNull(address, "address");
+        Objects.requireNonNull(key, "key");
+        if (replyTtl < 0) {
+            throw new IllegalArgumentException("replyTtl must be >= 0");
+        }
+        singleFlights.put(address, new SingleFlight(capzInternal, key, replyTtl));
+        return this;
+    }
+
+    @Override
+    public EventBus removeSingleFlight(String address) {
+        Objects.requireNonNull(address, "address");
+        singleFlights.remove(address);
+        return this;
+    }
+
+    @Override
+    public Address address(String address) {
+        Objects.requireNonNull(address, "address");
+        return addresses.computeIfAbsent(address, a -> new AddressImpl(this, a));
+    }
+
+    @Override
+    public EventBus send(Address address, Object message) {
+        return send(address, message, new DeliveryOptions(), null);
+    }
+
+    @Override
+    public <T> EventBus send(Address address, Object message, Handler<AsyncResult<Message<T>>> replyHandler) {
+        return send(address, message, new DeliveryOptions(), replyHandler);
+    }
+
+    @Override
+    public EventBus send(Address address, Object message, DeliveryOptions options) {
+        return send(address, message, options, null);
+    }
+
+    @Override
+    public <T> EventBus send(Address address, Object message, DeliveryOptions options,
+                             Handler<AsyncResult<Message<T>>> replyHandler) {
+        AddressImpl target = target(address);
+        sendOrPubInternal(createMessage(true, target.address(), options.getHeaders(), message, options.getCodecName()),
+                options, replyHandler, target);
+        return this;
+    }
+
+    @Override
+    public EventBus publish(Address address, Object message) {
+        return publish(address, message, new DeliveryOptions());
+    }
+
+    @Override
+    public EventBus publish(Address address, Object message, DeliveryOptions options) {
+        AddressImpl target = target(address);
+        sendOrPubInternal(createMessage(false, target.address(), options.getHeaders(), message, options.getCodecName()),
+                options, null, target);
+        return this;
+    }
+
+    private AddressImpl target(Address address) {
+        Objects.requireNonNull(address, "address");
+        if (!(address instanceof AddressImpl) || ((AddressImpl) address).bus() != this) {
+            throw new IllegalArgumentException("Address " + address + " was not created by this event bus");
+        }
+        return (AddressImpl) address;
+    }
+
+    int handlersVersion() {
+        return handlersVersion.get();
+    }
+
     @Override
     public <T> MessageProducer<T> sender(String address) {
         Objects.requireNonNull(address, "address");
-        return new MessageProducerImpl<>(capzInternal, address, true, new DeliveryOptions());
+        return new MessageProducerImpl<>(capzInternal, address, true, new DeliveryOptions(),
+                producerWindowSize, creditBatchSize);
     }
 
     @Override
     public <T> MessageProducer<T> sender(String address, DeliveryOptions options) {
         Objects.requireNonNull(address, "address");
         Objects.requireNonNull(options, "options");
-        return new MessageProducerImpl<>(capzInternal, address, true, options);
+        return new MessageProducerImpl<>(capzInternal, address, true, options,
+                producerWindowSize, creditBatchSize);
     }
 
     @Override
     public <T> MessageProducer<T> publisher(String address) {
         Objects.requireNonNull(address, "address");
-        return new MessageProducerImpl<>(capzInternal, address, false, new DeliveryOptions());
+        return new MessageProducerImpl<>(capzInternal, address, false, new DeliveryOptions(),
+                producerWindowSize, creditBatchSize);
     }
 
     @Override
     public <T> MessageProducer<T> publisher(String address, DeliveryOptions options) {
         Objects.requireNonNull(address, "address");
         Objects.requireNonNull(options, "options");
-        return new MessageProducerImpl<>(capzInternal, address, false, options);
+        return new MessageProducerImpl<>(capzInternal, address, false, options,
+                producerWindowSize, creditBatchSize);
     }
 
     @Override
@@ -130,7 +310,7 @@ public class EventBusImpl implements EventBus {
     public <T> MessageConsumer<T> consumer(String address) {
         checkStarted();
         Objects.requireNonNull(address, "address");
-        return new HandlerRegistration<>(capzInternal, this, address, null, false, null, -1);
+        return new HandlerRegistration<>(capzInternal, this, address, false);
     }
 
     @Override
@@ -141,11 +321,55 @@ public class EventBusImpl implements EventBus {
         return consumer;
     }
 
+    @Override
+    public <T> MessageConsumer<T> batchConsumer(String address, int maxBatchSize, long maxDelayMs,
+                                                Handler<List<Message<T>>> handler) {
+        checkStarted();
+        Objects.requireNonNull(address, "address");
+        Objects.requireNonNull(handler, "handler");
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be >= 1");
+        }
+        if (maxDelayMs < 1) {
+            throw new IllegalArgumentException("maxDelayMs must be >= 1");
+        }
+        HandlerRegistration<T> registration = new HandlerRegistration<>(capzInternal, this, address, false);
+        registration.batchHandler(maxBatchSize, maxDelayMs, handler);
+        return registration;
+    }
+
+    @Override
+    public MessageConsumer<Long> longConsumer(String address, LongMessageHandler handler) {
+        Objects.requireNonNull(handler, "handler");
+        return consumer(address, (Message<Long> msg) -> {
+            if (msg instanceof LongMessageImpl) {
+                handler.handle(((LongMessageImpl) msg).value, msg);
+            } else {
+                // 通过send(address, Object)或者从其他节点收到的消息
+                Object body = msg.body();
+                handler.handle(((Number) body).longValue(), msg);
+            }
+        });
+    }
+
+    @Override
+    public MessageConsumer<Double> doubleConsumer(String address, DoubleMessageHandler handler) {
+        Objects.requireNonNull(handler, "handler");
+        return consumer(address, (Message<Double> msg) -> {
+            if (msg instanceof DoubleMessageImpl) {
+                handler.handle(((DoubleMessageImpl) msg).value, msg);
+            } else {
+                Object body = msg.body();
+                handler.handle(((Number) body).doubleValue(), msg);
+            }
+        });
+    }
+
     @Override
     public <T> MessageConsumer<T> localConsumer(String address) {
         checkStarted();
         Objects.requireNonNull(address, "address");
-        return new HandlerRegistration<>(capzInternal, this, address, null, true, null, -1);
+        return new HandlerRegistration<>(capzInternal, this, address, true);
     }
 
     @Override
@@ -180,6 +404,18 @@ public class EventBusImpl implements EventBus {
         return this;
     }
 
+    @Override
+    public EventBus bindCodec(String address, String codecName) {
+        codecManager.bindCodec(address, codecName);
+        return this;
+    }
+
+    @Override
+    public EventBus unbindCodec(String address) {
+        codecManager.unbindCodec(address);
+        return this;
+    }
+
     @Override
     public void close(Handler<AsyncResult<Void>> completionHandler) {
         checkStarted();
@@ -193,40 +429,67 @@ public class EventBusImpl implements EventBus {
 
     protected MessageImpl createMessage(boolean send, String address, Map<String, List<String>> headers, Object body, String codecName) {
         Objects.requireNonNull(address, "no null address accepted");
-        MessageCodec codec = codecManager.lookupCodec(body, codecName);
+        return newMessage(send, address, headers, body, codecName);
+    }
+
+    // 回复消息没有地址，按replyTo直接投递给等待回复的handler
+    protected MessageImpl createReplyMessage(long replyTo, Map<String, List<String>> headers, Object body, String codecName) {
+        MessageImpl msg = newMessage(true, null, headers, body, codecName);
+        msg.replyTo = replyTo;
+        return msg;
+    }
+
+    // 以下两个方法创建不装箱的消息，地址上绑定的codec不起作用
+    protected MessageImpl newLongMessage(boolean send, String address, long value) {
+        Objects.requireNonNull(address, "no null address accepted");
+        return new LongMessageImpl(address, value, send, this);
+    }
+
+    protected MessageImpl newDoubleMessage(boolean send, String address, double value) {
+        Objects.requireNonNull(address, "no null address accepted");
+        return new DoubleMessageImpl(address, value, send, this);
+    }
+
+    protected MessageImpl newMessage(boolean send, String address, Map<String, List<String>> headers, Object body, String codecName) {
+        MessageCodec codec = codecManager.lookupCodec(address, body, codecName);
         @SuppressWarnings("unchecked")
         MessageImpl msg = new MessageImpl(address, null, headers, body, codec, send, this);
         return msg;
     }
 
-    protected <T> void addRegistration(String address, HandlerRegistration<T> registration,
-                                       boolean replyHandler, boolean localOnly) {
+    protected <T> void addRegistration(String address, HandlerRegistration<T> registration, boolean localOnly) {
         Objects.requireNonNull(registration.getHandler(), "handler");
-        boolean newAddress = addLocalRegistration(address, registration, replyHandler, localOnly);
-        addRegistration(newAddress, address, replyHandler, localOnly, registration::setResult);
+        boolean newAddress = addLocalRegistration(address, registration, localOnly);
+        if (metrics != null) {
+            registration.setMetric(metrics.handlerRegistered(address, registration));
+        }
+        addRegistration(newAddress, address, localOnly, registration::setResult);
     }
 
-    protected <T> void addRegistration(boolean newAddress, String address,
-                                       boolean replyHandler, boolean localOnly,
+    protected <T> void addRegistration(boolean newAddress, String address, boolean localOnly,
                                        Handler<AsyncResult<Void>> completionHandler) {
         completionHandler.handle(Future.succeededFuture());
     }
 
-    protected <T> boolean addLocalRegistration(String address, HandlerRegistration<T> registration,
-                                               boolean replyHandler, boolean localOnly) {
+    // 返回值表示是否需要在集群中登记：地址上第一个非localOnly的consumer（localOnly时为是否是新地址）
+    protected <T> boolean addLocalRegistration(String address, HandlerRegistration<T> registration, boolean localOnly) {
         Objects.requireNonNull(address, "address");
 
-        Context context = Capz.currentContext();
-        boolean hasContext = context != null;
-        if (!hasContext) {
-            // Embedded
-            context = capzInternal.getOrCreateContext();
-        }
+        Context context = currentContext();
+        boolean hasContext = Capz.currentContext() != null;
         registration.setHandlerContext(context);
 
         boolean newAddress = false;
 
-        HandlerHolder holder = new HandlerHolder<>(registration, replyHandler, localOnly, context);
+        HandlerHolder holder = new HandlerHolder<>(registration, localOnly, context);
+
+        if (AddressTrie.isPattern(address)) {
+            boolean newPattern = patternHandlers.add(address, holder);
+            if (newPattern) {
+                handlersVersion.incrementAndGet();
+            }
+            return newPattern;
+        }
 
         Handlers handlers = handlerMap.get(address);
         if (handlers == null) {
@@ -237,18 +500,33 @@ public class EventBusImpl implements EventBus {
             }
             newAddress = true;
         }
-        handlers.list.add(holder);
+        boolean firstRemote = handlers.add(holder);
+        if (newAddress) {
+            handlersVersion.incrementAndGet();
+        }
 
         if (hasContext) {
             HandlerEntry entry = new HandlerEntry<>(address, registration);
             //context.addCloseHook(entry);
         }
 
-        return newAddress;
+        // 集群中按地址上是否有非localOnly的consumer登记，先注册的localOnly consumer不影响
+        return localOnly ? newAddress : firstRemote;
+    }
+
+    // consumer设置的投递策略作用于同一地址上的所有consumer
+    void setDeliveryStrategy(String address, DeliveryStrategy strategy) {
+        Handlers handlers = AddressTrie.isPattern(address) ? patternHandlers.handlers(address) : handlerMap.get(address);
+        if (handlers != null) {
+            handlers.setStrategy(strategy);
+        }
     }
 
     protected <T> void removeRegistration(String address, HandlerRegistration<T> handler, Handler<AsyncResult<Void>> completionHandler) {
         HandlerHolder holder = removeLocalRegistration(address, handler);
+        if (metrics != null) {
+            metrics.handlerUnregistered(handler.getMetric());
+        }
         removeRegistration(holder, address, completionHandler);
     }
 
@@ -257,7 +535,19 @@ public class EventBusImpl implements EventBus {
         callCompletionHandlerAsync(completionHandler);
     }
 
+    // 返回值不为null时表示删除的是地址上最后一个非localOnly的consumer（模式地址为最后一个consumer）
     protected <T> HandlerHolder removeLocalRegistration(String address, HandlerRegistration<T> handler) {
+        if (AddressTrie.isPattern(address)) {
+            boolean[] last = new boolean[1];
+            HandlerHolder holder = patternHandlers.remove(address, handler, last);
+            if (holder != null) {
+                holder.setRemoved();
+            }
+            if (last[0]) {
+                handlersVersion.incrementAndGet();
+            }
+            return last[0] ? holder : null;
+        }
         Handlers handlers = handlerMap.get(address);
         HandlerHolder lastHolder = null;
         if (handlers != null) {
@@ -268,10 +558,14 @@ public class EventBusImpl implements EventBus {
                 for (int i = 0; i < size; i++) {
                     HandlerHolder holder = handlers.list.get(i);
                     if (holder.getHandler() == handler) {
-                        handlers.list.remove(i);
+                        handlers.remove(holder);
                         holder.setRemoved();
                         if (handlers.list.isEmpty()) {
                             handlerMap.remove(address);
+                            handlersVersion.incrementAndGet();
+                        }
+                        // 地址上最后一个非localOnly的consumer，集群中不再登记这个地址（可能还剩localOnly的consumer）
+                        if (!holder.isLocalOnly() && !handlers.hasRemoteHolders()) {
                             lastHolder = holder;
                         }
                         //holder.getContext().removeCloseHook(new HandlerEntry<>(address, holder.getHandler()));
@@ -285,33 +579,29 @@ public class EventBusImpl implements EventBus {
 
     protected <T> void sendReply(MessageImpl replyMessage, MessageImpl replierMessage, DeliveryOptions options,
                                  Handler<AsyncResult<Message<T>>> replyHandler) {
-        if (replyMessage.address() == null) {
-            throw new IllegalStateException("address not specified");
+        if (replyMessage.replyTo == 0) {
+            throw new IllegalStateException("reply id not specified");
         } else {
-            HandlerRegistration<T> replyHandlerRegistration = createReplyHandlerRegistration(replyMessage, options, replyHandler);
-            new ReplySendContextImpl<>(replyMessage, options, replyHandlerRegistration, replierMessage).next();
+            if (options != null) {
+                replyMessage.ownershipTransfer = options.isOwnershipTransfer();
+            }
+            ReplyCorrelator.PendingReply<T> pendingReply = registerReply(replyMessage, options, replyHandler);
+            new ReplySendContextImpl<>(replyMessage, options, pendingReply, replierMessage).next();
         }
     }
 
     protected <T> void sendReply(SendContextImpl<T> sendContext, MessageImpl replierMessage) {
-        sendOrPub(sendContext);
+        deliverReply(sendContext.message, isInline(sendContext));
     }
 
-    protected <T> void sendOrPub(SendContextImpl<T> sendContext) {
-        deliverMessageLocally(sendContext);
+    // 回复不经过地址表，直接交给等待回复的handler
+    protected void deliverReply(MessageImpl reply, boolean inline) {
+        reply.setBus(this);
+        replyCorrelator.deliver(reply, inline, maxInlineDeliveries);
     }
 
-    protected <T> Handler<Message<T>> convertHandler(Handler<AsyncResult<Message<T>>> handler) {
-        return reply -> {
-            Future<Message<T>> result;
-            if (reply.body() instanceof ReplyException) {
-                ReplyException exception = (ReplyException) reply.body();
-                result = Future.failedFuture(exception);
-            } else {
-                result = Future.succeededFuture(reply);
-            }
-            handler.handle(result);
-        };
+    protected <T> void sendOrPub(SendContextImpl<T> sendContext) {
+        deliverMessageLocally(sendContext);
     }
 
     protected void callCompletionHandlerAsync(Handler<AsyncResult<Void>> completionHandler) {
@@ -323,40 +613,197 @@ public class EventBusImpl implements EventBus {
     }
 
     protected <T> void deliverMessageLocally(SendContextImpl<T> sendContext) {
-        if (!deliverMessageLocally(sendContext.message)) {
+        DeliveryStrategy strategy = sendContext.options != null ? sendContext.options.getDeliveryStrategy() : null;
+        if (!deliverMessageLocally(sendContext.message, isInline(sendContext), strategy, sendContext.target)) {
             // no handlers
-            if (sendContext.handlerRegistration != null) {
-                sendContext.handlerRegistration.sendAsyncResultFailure(ReplyFailure.NO_HANDLERS,
+            if (sendContext.pendingReply != null) {
+                replyCorrelator.fail(sendContext.pendingReply, ReplyFailure.NO_HANDLERS,
                         "No handlers for address " + sendContext.message.address);
             }
         }
     }
 
+    private boolean isInline(SendContextImpl<?> sendContext) {
+        return inlineDelivery || (sendContext.options != null && sendContext.options.isInlineDelivery());
+    }
+
     protected boolean isMessageLocal(MessageImpl msg) {
         return true;
     }
 
     protected <T> boolean deliverMessageLocally(MessageImpl msg) {
+        return deliverMessageLocally(msg, inlineDelivery);
+    }
+
+    protected <T> boolean deliverMessageLocally(MessageImpl msg, boolean inline) {
+        return deliverMessageLocally(msg, inline, null);
+    }
+
+    // strategy是DeliveryOptions中为本次发送指定的策略，可以为null
+    protected <T> boolean deliverMessageLocally(MessageImpl msg, boolean inline, DeliveryStrategy strategy) {
+        return deliverMessageLocally(msg, inline, strategy, null);
+    }
+
+    // target是通过地址句柄发送时已经解析好的地址，为null时按地址查找
+    private boolean deliverMessageLocally(MessageImpl msg, boolean inline, DeliveryStrategy strategy, AddressImpl target) {
         msg.setBus(this);
-        Handlers handlers = handlerMap.get(msg.address());
+        Handlers handlers;
+        Handlers[] matched;
+        if (target != null) {
+            AddressImpl.Resolved resolved = target.resolve();
+            handlers = resolved.handlers;
+            matched = resolved.matched;
+        } else {
+            handlers = handlerMap.get(msg.address());
+            matched = patternHandlers.match(msg.address());
+        }
+        if (handlers == null && matched.length == 0) {
+            return false;
+        }
+        // 其他节点发来的消息不投递给localOnly的consumer
+        boolean fromRemote = !isMessageLocal(msg);
+        if (msg.isSend()) {
+            // 精确地址的consumer优先，没有时从匹配的模式中选一个
+            HandlerHolder holder = handlers != null ? handlers.choose(msg, strategy, fromRemote) : null;
+            if (holder == null) {
+                holder = choose(matched, msg, strategy, fromRemote);
+            }
+            if (holder == null) {
+                // 只有localOnly的consumer
+                return false;
+            }
+            if (metrics != null) {
+                metrics.messageReceived(msg.address(), false, 1);
+            }
+            deliverToHandler(msg, holder, inline);
+        } else {
+            if (metrics != null) {
+                metrics.messageReceived(msg.address(), true, handlerCount(handlers, matched, fromRemote));
+            }
+            publishLocally(msg, handlers, matched, inline, fromRemote);
+        }
+        return true;
+    }
+
+    // 发布时按consumer所在的event loop分组，每个event loop只提交一个任务，在这个任务中依次处理各consumer的mailbox。
+    // 消息仍然在调用线程上放入各consumer的mailbox，与send的消息保持顺序
+    private void publishLocally(MessageImpl msg, Handlers handlers, Handlers[] matched, boolean inline, boolean fromRemote) {
+        // 不可变的body只转换（或解码）一次，各consumer的消息从这个模板复制，共享body，header和回复状态仍然各自独立。
+        // long/double消息复制的是基本类型的值，不需要模板，调用body()反而会装箱
+        MessageImpl source = msg;
+        if (msg.messageCodec instanceof ImmutableMessageCodec
+                && !(msg instanceof LongMessageImpl) && !(msg instanceof DoubleMessageImpl)) {
+            source = msg.copyBeforeReceive();
+            source.body();
+        }
+        MessageImpl single = null;
+        if (source == msg && msg.ownershipTransfer && handlerCount(handlers, matched, fromRemote) == 1) {
+            // 只有一个consumer时可以直接转移body的所有权
+            single = msg.copyBeforeReceive(true);
+        }
+        Map<EventLoop, FanOut> fanOuts = null;
         if (handlers != null) {
-            if (msg.isSend()) {
-                //Choose one
-                HandlerHolder holder = handlers.choose();
+            for (HandlerHolder holder : handlers.list) {
+                fanOuts = publishToHandler(source, single, holder, inline, fromRemote, fanOuts);
+            }
+        }
+        for (Handlers patternHandler : matched) {
+            for (HandlerHolder holder : patternHandler.list) {
+                fanOuts = publishToHandler(source, single, holder, inline, fromRemote, fanOuts);
+            }
+        }
+        if (fanOuts != null) {
+            for (FanOut fanOut : fanOuts.values()) {
+                fanOut.eventLoop.execute(fanOut);
+            }
+        }
+    }
 
-                if (holder != null) {
-                    deliverToHandler(msg, holder);
-                }
-            } else {
-                // Publish
-                for (HandlerHolder holder : handlers.list) {
-                    deliverToHandler(msg, holder);
-                }
+    @SuppressWarnings("unchecked")
+    private Map<EventLoop, FanOut> publishToHandler(MessageImpl msg, MessageImpl single, HandlerHolder holder,
+                                                    boolean inline, boolean fromRemote, Map<EventLoop, FanOut> fanOuts) {
+        if (holder.isRemoved() || (fromRemote && holder.isLocalOnly())) {
+            return fanOuts;
+        }
+        HandlerRegistration registration = holder.getHandler();
+        Message copied = single != null ? single : msg.copyBeforeReceive();
+        AbstractContext context = registration.handlerContext();
+        if (inline || !context.isEventLoopContext()) {
+            registration.receive(copied, inline, maxInlineDeliveries);
+            return fanOuts;
+        }
+        if (registration.enqueue(copied)) {
+            if (fanOuts == null) {
+                fanOuts = new IdentityHashMap<>();
             }
-            return true;
-        } else {
-            return false;
+            EventLoop eventLoop = context.nettyEventLoop();
+            FanOut fanOut = fanOuts.get(eventLoop);
+            if (fanOut == null) {
+                fanOut = new FanOut(eventLoop);
+                fanOuts.put(eventLoop, fanOut);
+            }
+            fanOut.registrations.add(registration);
+        }
+        return fanOuts;
+    }
+
+    // 一个event loop上需要处理的consumer
+    private static class FanOut implements Runnable {
+
+        final EventLoop eventLoop;
+        final List<HandlerRegistration<?>> registrations = new ArrayList<>(4);
+
+        FanOut(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
         }
+
+        @Override
+        public void run() {
+            for (HandlerRegistration<?> registration : registrations) {
+                registration.drainOnEventLoop();
+            }
+        }
+    }
+
+    // 发布时会收到消息的consumer个数
+    private static int handlerCount(Handlers handlers, Handlers[] matched, boolean fromRemote) {
+        int count = handlers != null ? handlerCount(handlers, fromRemote) : 0;
+        for (Handlers patternHandler : matched) {
+            count += handlerCount(patternHandler, fromRemote);
+        }
+        return count;
+    }
+
+    private static int handlerCount(Handlers handlers, boolean fromRemote) {
+        if (!fromRemote) {
+            return handlers.list.size();
+        }
+        int count = 0;
+        for (HandlerHolder holder : handlers.list) {
+            if (!holder.isLocalOnly()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static HandlerHolder choose(Handlers[] matched, MessageImpl msg, DeliveryStrategy strategy, boolean fromRemote) {
+        if (matched.length == 0) {
+            return null;
+        }
+        int start = matched.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(matched.length);
+        for (int i = 0; i < matched.length; i++) {
+            HandlerHolder holder = matched[(start + i) % matched.length].choose(msg, strategy, fromRemote);
+            if (holder != null) {
+                return holder;
+            }
+        }
+        return null;
+    }
+
+    // 地址中是否包含通配符分段
+    protected static boolean isPattern(String address) {
+        return AddressTrie.isPattern(address);
     }
 
     protected void checkStarted() {
@@ -365,22 +812,23 @@ public class EventBusImpl implements EventBus {
         }
     }
 
-    protected String generateReplyAddress() {
-        return Long.toString(replySequence.incrementAndGet());
+    private AbstractContext currentContext() {
+        Context context = Capz.currentContext();
+        if (context == null) {
+            // Embedded
+            context = capzInternal.getOrCreateContext();
+        }
+        return (AbstractContext) context;
     }
 
-    private <T> HandlerRegistration<T> createReplyHandlerRegistration(MessageImpl message,
-                                                                      DeliveryOptions options,
-                                                                      Handler<AsyncResult<Message<T>>> replyHandler) {
+    private <T> ReplyCorrelator.PendingReply<T> registerReply(MessageImpl message, DeliveryOptions options,
+                                                              Handler<AsyncResult<Message<T>>> replyHandler) {
         if (replyHandler != null) {
             long timeout = options.getTimeout();
-            String replyAddress = generateReplyAddress();
-            message.setReplyAddress(replyAddress);
-            Handler<Message<T>> simpleReplyHandler = convertHandler(replyHandler);
-            HandlerRegistration<T> registration =
-                    new HandlerRegistration(capzInternal, this, replyAddress, message.address, true, replyHandler, timeout);
-            registration.handler(simpleReplyHandler);
-            return registration;
+            if (timeout > 0) {
+                message.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            }
+            return replyCorrelator.register(message, currentContext(), timeout, replyHandler);
         } else {
             return null;
         }
@@ -388,24 +836,53 @@ public class EventBusImpl implements EventBus {
 
     private <T> void sendOrPubInternal(MessageImpl message, DeliveryOptions options,
                                        Handler<AsyncResult<Message<T>>> replyHandler) {
+        sendOrPubInternal(message, options, replyHandler, null);
+    }
+
+    private <T> void sendOrPubInternal(MessageImpl message, DeliveryOptions options,
+                                       Handler<AsyncResult<Message<T>>> replyHandler, AddressImpl target) {
         checkStarted();
-        HandlerRegistration<T> replyHandlerRegistration = createReplyHandlerRegistration(message, options, replyHandler);
-        SendContextImpl<T> sendContext = new SendContextImpl<>(message, options, replyHandlerRegistration);
-        sendContext.next();
+        // 合并的请求也计入发送的消息数
+        if (metrics != null) {
+            metrics.messageSent(message.address, !message.isSend());
+        }
+        if (replyHandler != null && message.isSend() && !singleFlights.isEmpty()) {
+            SingleFlight singleFlight = singleFlights.get(message.address);
+            if (singleFlight != null) {
+                replyHandler = singleFlight.join(message, currentContext(), replyHandler);
+                if (replyHandler == null) {
+                    // 合并到了正在等待回复的相同请求中
+                    return;
+                }
+            }
+        }
+        message.ownershipTransfer = options.isOwnershipTransfer();
+        ReplyCorrelator.PendingReply<T> pendingReply = registerReply(message, options, replyHandler);
+        SendContextImpl<T> sendContext = new SendContextImpl<>(message, options, pendingReply);
+        sendContext.target = target;
+        if (sendContext.chain.length == 0) {
+            sendOrPub(sendContext);
+        } else {
+            sendContext.next();
+        }
     }
 
     protected class SendContextImpl<T> implements SendContext<T> {
 
         public final MessageImpl message;
         public final DeliveryOptions options;
-        public final HandlerRegistration<T> handlerRegistration;
-        public final Iterator<Handler<SendContext>> iter;
-
-        public SendContextImpl(MessageImpl message, DeliveryOptions options, HandlerRegistration<T> handlerRegistration) {
+        public final ReplyCorrelator.PendingReply<T> pendingReply;
+        // 创建时的拦截器快照，之后增删拦截器不影响正在发送的消息
+        final Interceptor[] chain;
+        private int index;
+        // 通过地址句柄发送时的目标地址
+        AddressImpl target;
+
+        public SendContextImpl(MessageImpl message, DeliveryOptions options, ReplyCorrelator.PendingReply<T> pendingReply) {
             this.message = message;
             this.options = options;
-            this.handlerRegistration = handlerRegistration;
-            this.iter = interceptors.iterator();
+            this.pendingReply = pendingReply;
+            this.chain = interceptors;
         }
 
         @Override
@@ -415,16 +892,23 @@ public class EventBusImpl implements EventBus {
 
         @Override
         public void next() {
-            if (iter.hasNext()) { // TODO
-                Handler<SendContext> handler = iter.next();
-                try {
-                    handler.handle(this);
-                } catch (Throwable t) {
-                    log.error("Failure in interceptor", t);
+            while (index < chain.length) {
+                Interceptor interceptor = chain[index++];
+                if (interceptor.accepts(message)) {
+                    try {
+                        interceptor.handler.handle(this);
+                    } catch (Throwable t) {
+                        log.error("Failure in interceptor", t);
+                    }
+                    return;
                 }
-            } else {
-                sendOrPub(this);
             }
+            end();
+        }
+
+        // 所有拦截器都调用了next之后真正发送
+        protected void end() {
+            sendOrPub(this);
         }
 
         @Override
@@ -434,7 +918,7 @@ public class EventBusImpl implements EventBus {
 
         @Override
         public Object sentBody() {
-            return message.sentBody;
+            return message.sentBody();
         }
     }
 
@@ -442,20 +926,41 @@ public class EventBusImpl implements EventBus {
 
         private final MessageImpl replierMessage;
 
-        public ReplySendContextImpl(MessageImpl message, DeliveryOptions options, HandlerRegistration<T> handlerRegistration,
+        public ReplySendContextImpl(MessageImpl message, DeliveryOptions options, ReplyCorrelator.PendingReply<T> pendingReply,
                                     MessageImpl replierMessage) {
-            super(message, options, handlerRegistration);
+            super(message, options, pendingReply);
             this.replierMessage = replierMessage;
         }
 
         @Override
-        public void next() {
-            if (iter.hasNext()) {
-                Handler<SendContext> handler = iter.next();
-                handler.handle(this);
-            } else {
-                sendReply(this, replierMessage);
+        protected void end() {
+            sendReply(this, replierMessage);
+        }
+    }
+
+    private static final class Interceptor {
+
+        // 为null时拦截所有消息
+        final String addressPattern;
+        final boolean pattern;
+        final Handler<SendContext> handler;
+
+        Interceptor(String addressPattern, Handler<SendContext> handler) {
+            this.addressPattern = addressPattern;
+            this.pattern = addressPattern != null && AddressTrie.isPattern(addressPattern);
+            this.handler = handler;
+        }
+
+        boolean accepts(MessageImpl message) {
+            if (addressPattern == null) {
+                return true;
+            }
+            // 回复消息没有地址，只经过不带地址过滤的拦截器
+            String address = message.address;
+            if (address == null) {
+                return false;
             }
+            return pattern ? AddressTrie.matches(addressPattern, address) : addressPattern.equals(address);
         }
     }
 
@@ -467,26 +972,32 @@ public class EventBusImpl implements EventBus {
                 holder.getHandler().unregister(true);
             }
         }
+        for (Handlers handlers : patternHandlers.allHandlers()) {
+            for (HandlerHolder holder : handlers.list) {
+                holder.getHandler().unregister(true);
+            }
+        }
+    }
+
+    EventBusMetrics metrics() {
+        return metrics;
     }
 
-    private <T> void deliverToHandler(MessageImpl msg, HandlerHolder<T> holder) {
+    // consumer在一个context任务中最多处理的消息个数
+    int maxMailboxDrainBatch() {
+        return maxMailboxDrainBatch;
+    }
+
+    private <T> void deliverToHandler(MessageImpl msg, HandlerHolder<T> holder, boolean inline) {
         // Each handler gets a fresh copy
         @SuppressWarnings("unchecked")
-        Message<T> copied = msg.copyBeforeReceive();
-
-        holder.getContext().runOnContext((v) -> {
-            // Need to check handler is still there - the handler might have been removed after the message were sent but
-            // before it was received
-            try {
-                if (!holder.isRemoved()) {
-                    holder.getHandler().handle(copied);
-                }
-            } finally {
-                if (holder.isReplyHandler()) {
-                    holder.getHandler().unregister();
-                }
-            }
-        });
+        Message<T> copied = msg.copyBeforeReceive(true);
+
+        // 消息放入consumer的mailbox，由consumer在自己的context上批量处理；
+        // handler在消息处理之前被注销的情况由consumer在处理时检查
+        if (!holder.isRemoved()) {
+            holder.getHandler().receive(copied, inline, maxInlineDeliveries);
+        }
     }
 
     public class HandlerEntry<T> implements Closeable {
@@ -6,15 +6,12 @@ public class HandlerHolder<T> {
 
     private final Context context;
     private final HandlerRegistration<T> handler;
-    private final boolean replyHandler;
     private final boolean localOnly;
     private boolean removed;
 
-    public HandlerHolder(HandlerRegistration<T> handler, boolean replyHandler, boolean localOnly,
-                         Context context) {
+    public HandlerHolder(HandlerRegistration<T> handler, boolean localOnly, Context context) {
         this.context = context;
         this.handler = handler;
-        this.replyHandler = replyHandler;
         this.localOnly = localOnly;
     }
 
@@ -54,10 +51,6 @@ public class HandlerHolder<T> {
         return handler;
     }
 
-    public boolean isReplyHandler() {
-        return replyHandler;
-    }
-
     public boolean isLocalOnly() {
         return localOnly;
     }
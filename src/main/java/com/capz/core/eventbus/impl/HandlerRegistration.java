@@ -3,19 +3,27 @@ package com.capz.core.eventbus.impl;
 import com.capz.core.AsyncResult;
 import com.capz.core.Capz;
 import com.capz.core.Context;
-import com.capz.core.Exception.ReplyException;
 import com.capz.core.Handler;
+import com.capz.core.eventbus.DeliveryStrategy;
 import com.capz.core.eventbus.Message;
 import com.capz.core.eventbus.MessageConsumer;
-import com.capz.core.eventbus.ReplyFailure;
+import com.capz.core.eventbus.MessageHeaders;
+import com.capz.core.eventbus.OverflowPolicy;
+import com.capz.core.impl.AbstractContext;
 import com.capz.core.impl.Future;
+import com.capz.core.impl.TimerService;
+import com.capz.core.spi.metrics.EventBusMetrics;
 import com.capz.core.streams.ReadStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 // 在地址address上注册handler，在消费message的时候进行调用
@@ -23,55 +31,62 @@ public class HandlerRegistration<T> implements MessageConsumer<T>, Handler<Messa
 
     private static final Logger log = LoggerFactory.getLogger(HandlerRegistration.class);
     public static final int DEFAULT_MAX_BUFFERED_MESSAGES = 1000;
+    // 不足一批的credit最多延迟多久返还，避免多个consumer各自攒着不足一批的credit让producer一直等待
+    static final long CREDIT_FLUSH_DELAY = 10;
 
     private final Capz capz;
     private final EventBusImpl eventBus;
     private final String address;
-    private final String repliedAddress;
     private final boolean localOnly;
-    private final Handler<AsyncResult<Message<T>>> asyncResultHandler;
-    private long timeoutID = -1;
-    private boolean registered;
-    private Handler<Message<T>> handler;
-    private Context handlerContext;
+    private volatile boolean registered;
+    private volatile Handler<Message<T>> handler;
+    private volatile AbstractContext handlerContext;
     private AsyncResult<Void> result;
     private Handler<AsyncResult<Void>> completionHandler;
     private Handler<Void> endHandler;
-    private Handler<Message<T>> discardHandler;
-    private int maxBufferedMessages = DEFAULT_MAX_BUFFERED_MESSAGES;
-    private final Queue<Message<T>> pending = new ArrayDeque<>(8);
-    private boolean paused;
-    private Object metric;
-
-    public HandlerRegistration(Capz capz, EventBusImpl eventBus, String address,
-                               String repliedAddress, boolean localOnly,
-                               Handler<AsyncResult<Message<T>>> asyncResultHandler, long timeout) {
+    private volatile Handler<Message<T>> discardHandler;
+    private volatile int maxBufferedMessages = DEFAULT_MAX_BUFFERED_MESSAGES;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private volatile DeliveryStrategy deliveryStrategy;
+    // 已经到达但还没有处理的消息，入队不加锁；drainScheduled保证同一时刻只有一个drain任务
+    private final Mailbox<Message<T>> mailbox = new Mailbox<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Handler<Void> drainTask = v -> drain();
+    private volatile boolean paused;
+    // 每个producer（credit地址）未返还的credit
+    private Map<String, CreditTracker> creditTrackers;
+    private volatile Object metric;
+    // 因为请求已经超时而丢弃的消息个数，只在handler的context上修改
+    private volatile long expiredMessages;
+    // 批量consumer（见EventBus.batchConsumer），在注册之前设置
+    private Handler<List<Message<T>>> batchHandler;
+    private int maxBatchSize;
+    private long maxBatchDelay;
+    // 以下两个字段只在handler的context上访问：攒着的消息和刷新它们的定时器，没有定时器时为-1
+    private List<Message<T>> batch;
+    private long batchTimerID = -1;
+
+    public HandlerRegistration(Capz capz, EventBusImpl eventBus, String address, boolean localOnly) {
         this.capz = capz;
         this.eventBus = eventBus;
         this.address = address;
-        this.repliedAddress = repliedAddress;
         this.localOnly = localOnly;
-        this.asyncResultHandler = asyncResultHandler;
-        if (timeout != -1) {
-            timeoutID = capz.setTimer(timeout, tid -> {
-                sendAsyncResultFailure(ReplyFailure.TIMEOUT,
-                        "Timed out after waiting " + timeout + "(ms) for a reply. address: " + address + ", repliedAddress: " + repliedAddress);
-            });
-        }
     }
 
     @Override
     public synchronized MessageConsumer<T> setMaxBufferedMessages(int maxBufferedMessages) {
         assert maxBufferedMessages > 0;
-        while (pending.size() > maxBufferedMessages) {
-            pending.poll();
-        }
         this.maxBufferedMessages = maxBufferedMessages;
+        if (paused && handlerContext != null && overflowPolicy != OverflowPolicy.CREDITS
+                && mailbox.size() > maxBufferedMessages) {
+            // 多出的消息由drain在handler的context上丢弃
+            scheduleDrain();
+        }
         return this;
     }
 
     @Override
-    public synchronized int getMaxBufferedMessages() {
+    public int getMaxBufferedMessages() {
         return maxBufferedMessages;
     }
 
@@ -106,18 +121,8 @@ public class HandlerRegistration<T> implements MessageConsumer<T>, Handler<Messa
         doUnregister(null, callEndHandler);
     }
 
-    public void sendAsyncResultFailure(ReplyFailure failure, String msg) {
-        unregister();
-        asyncResultHandler.handle(Future.failedFuture(new ReplyException(failure, msg)));
-    }
-
     // TODO ???
     private void doUnregister(Handler<AsyncResult<Void>> completionHandler, boolean callEndHandler) {
-        // 取消定时任务
-        if (timeoutID != -1) {
-            capz.cancelTimer(timeoutID);
-        }
-
         if (endHandler != null && callEndHandler) {
             Handler<Void> theEndHandler = endHandler;
             Handler<AsyncResult<Void>> handler = completionHandler;
@@ -143,7 +148,7 @@ public class HandlerRegistration<T> implements MessageConsumer<T>, Handler<Messa
     }
 
     synchronized void setHandlerContext(Context context) {
-        handlerContext = context;
+        handlerContext = (AbstractContext) context;
     }
 
     public synchronized void setResult(AsyncResult<Void> result) {
@@ -158,75 +163,344 @@ public class HandlerRegistration<T> implements MessageConsumer<T>, Handler<Messa
 
     @Override
     public void handle(Message<T> message) {
-        Handler<Message<T>> theHandler;
-        synchronized (this) {
-            if (paused) {
-                if (pending.size() < maxBufferedMessages) {
-                    pending.add(message);
-                } else {
-                    if (discardHandler != null) {
-                        discardHandler.handle(message);
-                    } else {
-                        log.warn("Discarding message as more than " + maxBufferedMessages + " buffered in paused consumer. address: " + address);
+        receive(message, false, 0);
+    }
+
+    // 消息到达，可以在任意线程上调用：放入mailbox，需要时在handler的context上安排一次drain
+    void receive(Message<T> message, boolean inline, int maxInlineDeliveries) {
+        if (enqueue(message)) {
+            AbstractContext context = handlerContext;
+            if (!inline || !context.runAtEndOfTask(drainTask, maxInlineDeliveries)) {
+                context.runOnContext(drainTask);
+            }
+        }
+    }
+
+    // 放入mailbox，返回true时调用者负责安排一次drain（receive或者drainOnEventLoop）
+    boolean enqueue(Message<T> message) {
+        if (paused && mailbox.size() >= maxBufferedMessages && overflow(message)) {
+            return false;
+        }
+        mailbox.offer(message);
+        // 暂停时只有DROP_OLDEST需要drain来丢弃最早的消息
+        return (!paused || (overflowPolicy == OverflowPolicy.DROP_OLDEST && mailbox.size() > maxBufferedMessages))
+                && drainScheduled.compareAndSet(false, true);
+    }
+
+    // enqueue返回true之后，在handler所属event loop上的独立任务中直接执行drain
+    void drainOnEventLoop() {
+        handlerContext.executeFromIO(this::drain);
+    }
+
+    AbstractContext handlerContext() {
+        return handlerContext;
+    }
+
+    // 返回消息是否已经被丢弃
+    private boolean overflow(Message<T> message) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                return false;
+            case CREDITS:
+                if (hasCreditHeader(message)) {
+                    // 缓存的数量受producer的窗口限制
+                    return false;
+                }
+                break;
+            default:
+        }
+        handlerContext.runOnContext(v -> discard(message));
+        return true;
+    }
+
+    private void discard(Message<T> message) {
+        Handler<Message<T>> theDiscardHandler = discardHandler;
+        if (theDiscardHandler != null) {
+            theDiscardHandler.handle(message);
+        } else {
+            log.warn("Discarding message as more than " + maxBufferedMessages + " buffered in paused consumer. address: " + address);
+        }
+        // 丢弃的消息也要返还credit，否则producer的窗口会越来越小
+        returnCredit(message);
+        EventBusMetrics metrics = eventBus.metrics();
+        if (metrics != null) {
+            metrics.messageDiscarded(address);
+        }
+    }
+
+    // 在handler的context上执行，同一时刻只有一个drain在执行，是mailbox唯一的消费者
+    private void drain() {
+        try {
+            // 暂停期间超出maxBufferedMessages的部分丢弃最早的消息
+            if (paused && overflowPolicy != OverflowPolicy.CREDITS) {
+                while (mailbox.size() > maxBufferedMessages) {
+                    Message<T> message = mailbox.poll();
+                    if (message == null) {
+                        break;
+                    }
+                    discard(message);
+                }
+            }
+            int limit = eventBus.maxMailboxDrainBatch();
+            EventBusMetrics metrics = eventBus.metrics();
+            for (int i = 0; i < limit && !paused; i++) {
+                Message<T> message = mailbox.poll();
+                if (message == null) {
+                    break;
+                }
+                if (!registered) {
+                    // handler在消息到达之后、处理之前被注销了
+                    returnCredit(message);
+                    if (metrics != null) {
+                        metrics.messageDiscarded(address);
                     }
+                    continue;
+                }
+                if (message instanceof MessageImpl && ((MessageImpl) message).isExpired()) {
+                    // 请求方已经超时，不再调用handler
+                    expired(message, metrics);
+                    continue;
+                }
+                if (batchHandler != null) {
+                    addToBatch(message);
+                    continue;
                 }
-                return;
-            } else {
-                if (pending.size() > 0) {
-                    pending.add(message);
-                    message = pending.poll();
+                deliver(handler, message);
+                if (metrics != null) {
+                    metrics.messageDelivered(address);
                 }
-                theHandler = handler;
+            }
+            // 暂停期间定时器到期时没有刷新，恢复之后重新计时
+            if (batch != null && batchTimerID == -1 && !paused) {
+                scheduleBatchFlush();
+            }
+        } finally {
+            drainScheduled.set(false);
+            // 用size而不是isEmpty判断：offer在链接节点之前就已经计数，避免漏掉正在入队的消息
+            if (!paused && mailbox.size() > 0 && drainScheduled.compareAndSet(false, true)) {
+                handlerContext.runOnContext(drainTask);
             }
         }
-        deliver(theHandler, message);
     }
 
-    private void deliver(Handler<Message<T>> theHandler, Message<T> message) {
+    private void expired(Message<T> message, EventBusMetrics metrics) {
+        expiredMessages++;
+        returnCredit(message);
+        if (metrics != null) {
+            metrics.messageExpired(address);
+        }
+    }
 
-        checkNextTick();
-        boolean local = true;
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            handlerContext.runOnContext(drainTask);
+        }
+    }
 
-        /*String creditsAddress = message.headers().get(MessageProducerImpl.CREDIT_ADDRESS_HEADER_NAME);
-        if (creditsAddress != null) {
-            eventBus.send(creditsAddress, 1);
-        }*/
+    private void deliver(Handler<Message<T>> theHandler, Message<T> message) {
         try {
             theHandler.handle(message);
         } catch (Exception e) {
             log.error("Failed to handleMessage. address: " + message.address(), e);
             throw e;
+        } finally {
+            returnCredit(message);
         }
     }
 
-    private synchronized void checkNextTick() {
-        // Check if there are more pending messages in the queue that can be processed next time around
-        if (!pending.isEmpty()) {
-            handlerContext.runOnContext(v -> {
-                Message<T> message;
-                Handler<Message<T>> theHandler;
-                synchronized (HandlerRegistration.this) {
-                    if (paused || (message = pending.poll()) == null) {
-                        return;
-                    }
-                    theHandler = handler;
+    // 设置为批量consumer并注册，消息攒够maxBatchSize条或者第一条消息到达maxBatchDelay毫秒后一起交给handler
+    synchronized void batchHandler(int maxBatchSize, long maxBatchDelay, Handler<List<Message<T>>> batchHandler) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelay = maxBatchDelay;
+        this.batchHandler = batchHandler;
+        handler(message -> batchHandler.handle(Collections.singletonList(message)));
+    }
+
+    private void addToBatch(Message<T> message) {
+        if (batch == null) {
+            batch = new ArrayList<>(Math.min(maxBatchSize, eventBus.maxMailboxDrainBatch()));
+        }
+        batch.add(message);
+        if (batch.size() >= maxBatchSize) {
+            flushBatch();
+        } else if (batchTimerID == -1) {
+            scheduleBatchFlush();
+        }
+    }
+
+    // 定时器由handler的context所属的event loop上的时间轮驱动，到期时在handler的context上执行
+    private void scheduleBatchFlush() {
+        TimerService timerService = eventBus.capzInternal.timerService();
+        batchTimerID = timerService.schedule(handlerContext, id -> {
+            batchTimerID = -1;
+            if (!registered) {
+                discardBatch();
+            } else if (!paused) {
+                flushBatch();
+            }
+        }, maxBatchDelay, false);
+    }
+
+    private void flushBatch() {
+        if (batchTimerID != -1) {
+            eventBus.capzInternal.timerService().cancel(batchTimerID);
+            batchTimerID = -1;
+        }
+        List<Message<T>> messages = batch;
+        if (messages == null) {
+            return;
+        }
+        batch = null;
+        try {
+            batchHandler.handle(messages);
+        } catch (Exception e) {
+            log.error("Failed to handle message batch. address: " + address, e);
+            throw e;
+        } finally {
+            EventBusMetrics metrics = eventBus.metrics();
+            for (Message<T> message : messages) {
+                returnCredit(message);
+                if (metrics != null) {
+                    metrics.messageDelivered(address);
                 }
-                deliver(theHandler, message);
-            });
+            }
+        }
+    }
+
+    // handler在消息攒批期间被注销了
+    private void discardBatch() {
+        List<Message<T>> messages = batch;
+        if (messages == null) {
+            return;
+        }
+        batch = null;
+        EventBusMetrics metrics = eventBus.metrics();
+        for (Message<T> message : messages) {
+            returnCredit(message);
+            if (metrics != null) {
+                metrics.messageDiscarded(address);
+            }
         }
     }
 
+    private static boolean hasCreditHeader(Message<?> message) {
+        return MessageHeaders.getFirst(message.headers(), MessageProducerImpl.CREDIT_ADDRESS_HEADER_NAME) != null;
+    }
+
+    // 消息来自MessageProducer时，每处理一批消息向producer返还一次credit
+    @SuppressWarnings("unchecked")
+    private void returnCredit(Message<T> message) {
+        Map<String, List<String>> headers = message.headers();
+        if (headers == null) {
+            return;
+        }
+        String theCreditAddress = MessageHeaders.getFirst(headers, MessageProducerImpl.CREDIT_ADDRESS_HEADER_NAME);
+        if (theCreditAddress == null) {
+            return;
+        }
+        CreditTracker tracker;
+        int credits = 0;
+        boolean scheduleFlush = false;
+        synchronized (this) {
+            if (creditTrackers == null) {
+                creditTrackers = new HashMap<>();
+            }
+            tracker = creditTrackers.get(theCreditAddress);
+            if (tracker == null) {
+                tracker = new CreditTracker(theCreditAddress, creditBatchSize(headers));
+                creditTrackers.put(theCreditAddress, tracker);
+            }
+            tracker.unreturned++;
+            if (tracker.unreturned >= tracker.batchSize) {
+                credits = tracker.unreturned;
+                tracker.unreturned = 0;
+            } else if (!tracker.flushScheduled) {
+                tracker.flushScheduled = true;
+                scheduleFlush = true;
+            }
+        }
+        if (credits > 0) {
+            eventBus.send(theCreditAddress, credits);
+        }
+        if (scheduleFlush) {
+            CreditTracker theTracker = tracker;
+            capz.setTimer(CREDIT_FLUSH_DELAY, id -> flushCredits(theTracker));
+        }
+    }
+
+    private void flushCredits(CreditTracker tracker) {
+        int credits;
+        synchronized (this) {
+            credits = tracker.unreturned;
+            tracker.unreturned = 0;
+            tracker.flushScheduled = false;
+            if (credits == 0) {
+                // producer已经没有消息发过来了
+                creditTrackers.remove(tracker.creditAddress);
+            }
+        }
+        if (credits > 0) {
+            eventBus.send(tracker.creditAddress, credits);
+        }
+    }
+
+    private static int creditBatchSize(Map<String, List<String>> headers) {
+        String batch = MessageHeaders.getFirst(headers, MessageProducerImpl.CREDIT_BATCH_HEADER_NAME);
+        if (batch != null) {
+            try {
+                return Math.max(1, Integer.parseInt(batch));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return 1;
+    }
 
-    public synchronized void discardHandler(Handler<Message<T>> handler) {
+    public void discardHandler(Handler<Message<T>> handler) {
         this.discardHandler = handler;
     }
 
+    @Override
+    public MessageConsumer<T> setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        Objects.requireNonNull(overflowPolicy);
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    @Override
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public synchronized MessageConsumer<T> setDeliveryStrategy(DeliveryStrategy deliveryStrategy) {
+        this.deliveryStrategy = deliveryStrategy;
+        if (registered) {
+            eventBus.setDeliveryStrategy(address, deliveryStrategy);
+        }
+        return this;
+    }
+
+    @Override
+    public DeliveryStrategy getDeliveryStrategy() {
+        return deliveryStrategy;
+    }
+
+    @Override
+    public int mailboxDepth() {
+        return mailbox.size();
+    }
+
+    @Override
+    public long expiredMessages() {
+        return expiredMessages;
+    }
+
     @Override
     public synchronized MessageConsumer<T> handler(Handler<Message<T>> handler) {
         this.handler = handler;
         if (this.handler != null && !registered) {
             registered = true;
-            eventBus.addRegistration(address, this, repliedAddress != null, localOnly);
+            eventBus.addRegistration(address, this, localOnly);
         } else if (this.handler == null && registered) {
             // This will set registered to false
             this.unregister();
@@ -236,8 +510,7 @@ public class HandlerRegistration<T> implements MessageConsumer<T>, Handler<Messa
 
     @Override
     public ReadStream<T> bodyStream() {
-        return null;
-        //return new BodyReadStream<>(this);
+        return new BodyReadStream<>(this);
     }
 
     @Override
@@ -257,7 +530,7 @@ public class HandlerRegistration<T> implements MessageConsumer<T>, Handler<Messa
     public synchronized MessageConsumer<T> resume() {
         if (paused) {
             paused = false;
-            checkNextTick();
+            scheduleDrain();
         }
         return this;
     }
@@ -287,4 +560,20 @@ public class HandlerRegistration<T> implements MessageConsumer<T>, Handler<Messa
         return metric;
     }
 
+    void setMetric(Object metric) {
+        this.metric = metric;
+    }
+
+    private static class CreditTracker {
+        final String creditAddress;
+        final int batchSize;
+        int unreturned;
+        boolean flushScheduled;
+
+        CreditTracker(String creditAddress, int batchSize) {
+            this.creditAddress = creditAddress;
+            this.batchSize = batchSize;
+        }
+    }
+
 }
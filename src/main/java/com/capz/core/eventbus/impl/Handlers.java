@@ -1,5 +1,11 @@
 package com.capz.core.eventbus.impl;
 
+import com.capz.core.eventbus.DeliveryStrategy;
+import com.capz.core.eventbus.Message;
+import com.capz.core.eventbus.MessageConsumer;
+
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -7,24 +13,106 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class Handlers {
 
     private final AtomicInteger pos = new AtomicInteger(0);
+    // 只能通过add和remove修改
     public final List<HandlerHolder> list = new CopyOnWriteArrayList<>();
+    // list的快照，选择consumer时不需要加锁，也不会因为并发修改越界
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    // 地址上的consumer设置的策略，为null时轮询
+    private volatile DeliveryStrategy strategy;
 
-    public HandlerHolder choose() {
-        while (true) {
-            int size = list.size();
-            if (size == 0) {
-                return null;
+    // 返回holder是否是地址上第一个非localOnly的consumer
+    synchronized boolean add(HandlerHolder holder) {
+        boolean firstRemote = !holder.isLocalOnly() && !hasRemoteHolders();
+        list.add(holder);
+        DeliveryStrategy holderStrategy = holder.getHandler().getDeliveryStrategy();
+        if (holderStrategy != null) {
+            strategy = holderStrategy;
+        }
+        snapshot = new Snapshot(list);
+        return firstRemote;
+    }
+
+    // 是否有可以接收其他节点消息的（非localOnly的）consumer
+    boolean hasRemoteHolders() {
+        return snapshot.remote.holders.length > 0;
+    }
+
+    synchronized boolean remove(HandlerHolder holder) {
+        boolean removed = list.remove(holder);
+        if (removed) {
+            snapshot = new Snapshot(list);
+            if (holder.getHandler().getDeliveryStrategy() != null) {
+                strategy = remainingStrategy();
             }
-            int p = pos.getAndIncrement();
-            if (p >= size - 1) {
-                pos.set(0);
+        }
+        return removed;
+    }
+
+    // consumer清除自己的策略（设为null）时回退到其余consumer的策略
+    synchronized void setStrategy(DeliveryStrategy strategy) {
+        this.strategy = strategy != null ? strategy : remainingStrategy();
+    }
+
+    // 剩下的consumer中最后注册的策略，都没有时为null（轮询）
+    private DeliveryStrategy remainingStrategy() {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            DeliveryStrategy holderStrategy = list.get(i).getHandler().getDeliveryStrategy();
+            if (holderStrategy != null) {
+                return holderStrategy;
+            }
+        }
+        return null;
+    }
+
+    public HandlerHolder choose() {
+        return choose(null, null);
+    }
+
+    // override是DeliveryOptions中为本次发送指定的策略
+    HandlerHolder choose(Message<?> message, DeliveryStrategy override) {
+        return choose(message, override, false);
+    }
+
+    // fromRemote为true时消息来自其他节点，只在非localOnly的consumer中选择
+    HandlerHolder choose(Message<?> message, DeliveryStrategy override, boolean fromRemote) {
+        Snapshot current = fromRemote ? snapshot.remote : snapshot;
+        HandlerHolder[] holders = current.holders;
+        if (holders.length <= 1) {
+            return holders.length == 0 ? null : holders[0];
+        }
+        DeliveryStrategy theStrategy = override != null ? override : strategy;
+        if (theStrategy == null || message == null) {
+            return holders[DeliveryStrategies.next(pos, holders.length)];
+        }
+        return holders[theStrategy.choose(message, current.consumers)];
+    }
+
+    private static class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyList());
+
+        final HandlerHolder[] holders;
+        final List<MessageConsumer<?>> consumers;
+        // 其中非localOnly的consumer，没有localOnly的consumer时就是自己
+        final Snapshot remote;
+
+        Snapshot(List<HandlerHolder> list) {
+            this(list.toArray(new HandlerHolder[0]), null);
+        }
+
+        private Snapshot(HandlerHolder[] holders, Snapshot all) {
+            this.holders = holders;
+            MessageConsumer<?>[] registrations = new MessageConsumer<?>[holders.length];
+            for (int i = 0; i < holders.length; i++) {
+                registrations[i] = holders[i].getHandler();
             }
-            try {
-                return list.get(p);
-            } catch (IndexOutOfBoundsException e) {
-                // Can happen
-                pos.set(0);
+            consumers = Collections.unmodifiableList(Arrays.asList(registrations));
+            if (all != null) {
+                remote = this;
+                return;
             }
+            HandlerHolder[] remoteHolders = Arrays.stream(holders).filter(h -> !h.isLocalOnly()).toArray(HandlerHolder[]::new);
+            remote = remoteHolders.length == holders.length ? this : new Snapshot(remoteHolders, this);
         }
     }
 }
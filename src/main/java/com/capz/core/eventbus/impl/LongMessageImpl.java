@@ -0,0 +1,39 @@
+package com.capz.core.eventbus.impl;
+
+/**
+ * sendLong/publishLong发送的消息，值保存在long字段中，本地投递时不装箱也不调用codec的transform。
+ * 只有在普通consumer调用body()时才装箱，发往其他节点时仍然使用long codec。
+ */
+class LongMessageImpl extends MessageImpl<Long, Long> {
+
+    final long value;
+
+    LongMessageImpl(String address, long value, boolean send, EventBusImpl bus) {
+        super(address, null, null, null, CodecManager.LONG_MESSAGE_CODEC, send, bus);
+        this.value = value;
+    }
+
+    private LongMessageImpl(LongMessageImpl other) {
+        super(other);
+        this.value = other.value;
+    }
+
+    @Override
+    public Long body() {
+        if (receivedBody == null) {
+            receivedBody = value;
+        }
+        return receivedBody;
+    }
+
+    @Override
+    public MessageImpl<Long, Long> copyBeforeReceive(boolean singleReceiver) {
+        // 每个接收者一个消息对象，header和回复状态各自独立，只复制值
+        return new LongMessageImpl(this);
+    }
+
+    @Override
+    protected Object sentBody() {
+        return body();
+    }
+}
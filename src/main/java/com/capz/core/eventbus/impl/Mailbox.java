@@ -0,0 +1,61 @@
+package com.capz.core.eventbus.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 无锁的多生产者单消费者队列（Vyukov的链表队列）。
+ * <p>
+ * offer可以在任意线程上调用，只需要一次原子交换；poll和isEmpty只能由唯一的消费者调用。
+ * size可以在任意线程上读取，用于监控和溢出判断，并发时是一个近似值。
+ */
+class Mailbox<E> {
+
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    // 生产者在head上追加
+    private final AtomicReference<Node<E>> head;
+    private final AtomicInteger size = new AtomicInteger();
+    // 消费者从tail之后取，tail本身是已经取出的节点
+    private Node<E> tail;
+
+    Mailbox() {
+        Node<E> stub = new Node<>(null);
+        head = new AtomicReference<>(stub);
+        tail = stub;
+    }
+
+    void offer(E value) {
+        Node<E> node = new Node<>(value);
+        size.incrementAndGet();
+        Node<E> prev = head.getAndSet(node);
+        prev.next = node;
+    }
+
+    E poll() {
+        Node<E> next = tail.next;
+        if (next == null) {
+            return null;
+        }
+        E value = next.value;
+        next.value = null;
+        tail = next;
+        size.decrementAndGet();
+        return value;
+    }
+
+    boolean isEmpty() {
+        return tail.next == null;
+    }
+
+    int size() {
+        return size.get();
+    }
+}
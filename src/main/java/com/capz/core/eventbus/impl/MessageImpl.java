@@ -3,10 +3,14 @@ package com.capz.core.eventbus.impl;
 import com.capz.core.AsyncResult;
 import com.capz.core.Exception.ReplyException;
 import com.capz.core.Handler;
+import com.capz.core.buffer.Buffer;
 import com.capz.core.eventbus.DeliveryOptions;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 import com.capz.core.eventbus.Message;
 import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.MessageHeaders;
 import com.capz.core.eventbus.ReplyFailure;
+import com.capz.core.eventbus.ReplyWriteStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,10 +25,19 @@ public class MessageImpl<U, V> implements Message<V> {
     protected EventBusImpl bus;
     protected String address;
     protected String replyAddress;
-    protected Map<String, List<String>> headers;
+    // 请求方分配的回复ID，0表示不需要回复
+    protected long replyId;
+    // 本消息是回复时，对应请求的回复ID
+    protected long replyTo;
+    // 请求方等待回复的截止时间（System.nanoTime()），0表示没有。过期之后回复已经没有人接收，consumer直接丢弃
+    protected long deadline;
+    // 没有header时为null；每个接收者的副本与发送方共享数据，修改时才复制
+    protected MessageHeaders headers;
     protected U sentBody;
     protected V receivedBody;
     protected boolean send;
+    // 本地投递时把body直接交给唯一的接收者，见DeliveryOptions.setOwnershipTransfer
+    protected boolean ownershipTransfer;
 
     public MessageImpl() {
     }
@@ -35,36 +48,69 @@ public class MessageImpl<U, V> implements Message<V> {
         this.messageCodec = messageCodec;
         this.address = address;
         this.replyAddress = replyAddress;
-        this.headers = headers;
+        this.headers = MessageHeaders.copyOf(headers);
         this.sentBody = sentBody;
         this.send = send;
         this.bus = bus;
     }
 
     protected MessageImpl(MessageImpl<U, V> other) {
+        this(other, false);
+    }
+
+    protected MessageImpl(MessageImpl<U, V> other, boolean transfer) {
         this.bus = other.bus;
         this.address = other.address;
         this.replyAddress = other.replyAddress;
+        this.replyId = other.replyId;
+        this.replyTo = other.replyTo;
+        this.deadline = other.deadline;
         this.messageCodec = other.messageCodec;
-        this.headers = other.headers;
-        if (other.sentBody != null) {
+        this.headers = other.headers == null ? null : other.headers.copy();
+        if (other.receivedBody != null && messageCodec instanceof ImmutableMessageCodec) {
+            // 已经转换或解码好的不可变body可以共享，见EventBusImpl.publishLocally
+            this.sentBody = other.sentBody;
+            this.receivedBody = other.receivedBody;
+        } else if (other.sentBody != null) {
             this.sentBody = other.sentBody;
-            this.receivedBody = messageCodec.transform(other.sentBody);
+            this.receivedBody = transfer ? transferBody(other.sentBody) : messageCodec.transform(other.sentBody);
         }
         this.send = other.send;
     }
 
     public MessageImpl<U, V> copyBeforeReceive() {
-        return new MessageImpl<>(this);
+        return copyBeforeReceive(false);
+    }
+
+    // singleReceiver为true表示这是唯一的接收者，发送方转移了所有权时可以不复制body
+    public MessageImpl<U, V> copyBeforeReceive(boolean singleReceiver) {
+        return new MessageImpl<>(this, canTransfer(singleReceiver));
+    }
+
+    protected boolean canTransfer(boolean singleReceiver) {
+        // 用户codec的发送类型和接收类型可能不同，只能通过transform转换
+        return singleReceiver && ownershipTransfer && messageCodec.systemCodecID() != -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V transferBody(U body) {
+        if (body instanceof Buffer) {
+            // 只读视图，与原Buffer共享数据
+            return (V) Buffer.buffer(((Buffer) body).getByteBuf().asReadOnly());
+        }
+        return (V) body;
     }
 
     @Override
     public String address() {
+        if (address == null && replyTo != 0) {
+            address = Long.toString(replyTo);
+        }
         return address;
     }
 
     @Override
-    public Map headers() {
+    public Map<String, List<String>> headers() {
         return headers;
     }
 
@@ -78,13 +124,14 @@ public class MessageImpl<U, V> implements Message<V> {
 
     @Override
     public String replyAddress() {
+        // 回复通过回复ID关联，没有可以发送的回复地址
         return replyAddress;
     }
 
     @Override
     public void fail(int failureCode, String message) {
-        if (replyAddress != null) {
-            sendReply(bus.createMessage(true, replyAddress, null,
+        if (replyId != 0) {
+            sendReply(bus.createReplyMessage(replyId, null,
                     new ReplyException(ReplyFailure.RECIPIENT_FAILURE, failureCode, message), null), null, null);
         }
     }
@@ -106,18 +153,40 @@ public class MessageImpl<U, V> implements Message<V> {
 
     @Override
     public <R> void reply(Object message, DeliveryOptions options, Handler<AsyncResult<Message<R>>> replyHandler) {
-        if (replyAddress != null) {
-            sendReply(bus.createMessage(true, replyAddress, options.getHeaders(), message, options.getCodecName()), options, replyHandler);
+        if (replyId != 0) {
+            sendReply(bus.createReplyMessage(replyId, options.getHeaders(), message, options.getCodecName()), options, replyHandler);
         }
     }
 
+    @Override
+    public <R> ReplyWriteStream<R> replyStream() {
+        String streamAddress = MessageHeaders.getFirst(headers, ReplyReadStreamImpl.STREAM_ADDRESS_HEADER_NAME);
+        if (replyId == 0 || streamAddress == null || bus == null) {
+            throw new IllegalStateException("The sender did not request a reply stream");
+        }
+        return new ReplyWriteStreamImpl<>(bus, this, streamAddress);
+    }
+
     @Override
     public boolean isSend() {
         return send;
     }
 
-    public void setReplyAddress(String replyAddress) {
-        this.replyAddress = replyAddress;
+    public long replyId() {
+        return replyId;
+    }
+
+    boolean isExpired() {
+        return deadline != 0 && System.nanoTime() - deadline > 0;
+    }
+
+    public long replyTo() {
+        return replyTo;
+    }
+
+    // 发送时的body，拦截器通过SendContext.sentBody()访问
+    protected Object sentBody() {
+        return sentBody;
     }
 
     public MessageCodec<U, V> codec() {
@@ -7,51 +7,65 @@ import com.capz.core.eventbus.DeliveryOptions;
 import com.capz.core.eventbus.EventBus;
 import com.capz.core.eventbus.Message;
 import com.capz.core.eventbus.MessageConsumer;
+import com.capz.core.eventbus.MessageHeaders;
 import com.capz.core.eventbus.MessageProducer;
 
 import java.util.ArrayDeque;
 import java.util.Queue;
 import java.util.UUID;
 
+/**
+ * send模式的producer基于credit做流控：每发送一条消息消耗一个credit，consumer处理完一批消息后
+ * 通过credit地址返还credit（见{@link HandlerRegistration}）。credit用完时消息暂存在pending中，
+ * writeQueueFull()返回true，credit恢复到窗口的一半时调用drainHandler，因此可以直接用于Pump。
+ */
 public class MessageProducerImpl<T> implements MessageProducer<T> {
 
     public static final String CREDIT_ADDRESS_HEADER_NAME = "__Capz.credit";
+    // consumer每处理多少条消息返还一次credit
+    public static final String CREDIT_BATCH_HEADER_NAME = "__Capz.creditBatch";
 
     private final Capz Capz;
     private final EventBus bus;
     private final boolean send;
     private final String address;
-    private final Queue<T> pending = new ArrayDeque<>();
+    private final Queue<PendingSend<T>> pending = new ArrayDeque<>();
     private final MessageConsumer<Integer> creditConsumer;
+    private final String creditAddress;
+    private final int creditBatchSize;
     private DeliveryOptions options;
-    private int maxSize = DEFAULT_WRITE_QUEUE_MAX_SIZE;
-    private int credits = DEFAULT_WRITE_QUEUE_MAX_SIZE;
+    private int maxSize;
+    private int credits;
     private Handler<Void> drainHandler;
 
     public MessageProducerImpl(Capz Capz, String address, boolean send, DeliveryOptions options) {
+        this(Capz, address, send, options, DEFAULT_WRITE_QUEUE_MAX_SIZE, 0);
+    }
+
+    public MessageProducerImpl(Capz Capz, String address, boolean send, DeliveryOptions options,
+                               int windowSize, int creditBatchSize) {
         this.Capz = Capz;
         this.bus = Capz.eventBus();
         this.address = address;
         this.send = send;
-        this.options = options;
+        this.maxSize = windowSize;
+        this.credits = windowSize;
+        this.creditBatchSize = creditBatchSize;
         if (send) {
-            String creditAddress = UUID.randomUUID().toString() + "-credit";
+            creditAddress = UUID.randomUUID().toString() + "-credit";
             creditConsumer = bus.consumer(creditAddress, msg -> {
                 doReceiveCredit(msg.body());
             });
-            options.addHeader(CREDIT_ADDRESS_HEADER_NAME, creditAddress);
         } else {
+            creditAddress = null;
             creditConsumer = null;
         }
+        this.options = withCreditHeaders(options);
     }
 
     @Override
     public synchronized MessageProducer<T> deliveryOptions(DeliveryOptions options) {
-        if (creditConsumer != null) {
-            options = new DeliveryOptions(options);
-            // options.addHeader(CREDIT_ADDRESS_HEADER_NAME, this.options.getHeaders().get(CREDIT_ADDRESS_HEADER_NAME));
-        }
-        this.options = options;
+        this.options = withCreditHeaders(options);
         return this;
     }
 
@@ -77,6 +91,9 @@ public class MessageProducerImpl<T> implements MessageProducer<T> {
         int delta = s - maxSize;
         maxSize = s;
         credits += delta;
+        // 窗口变化后批量返还的大小也要跟着变化
+        options = withCreditHeaders(options);
+        sendPending();
         return this;
     }
 
@@ -92,7 +109,7 @@ public class MessageProducerImpl<T> implements MessageProducer<T> {
 
     @Override
     public synchronized boolean writeQueueFull() {
-        return credits == 0;
+        return send && credits <= 0;
     }
 
     @Override
@@ -125,34 +142,100 @@ public class MessageProducerImpl<T> implements MessageProducer<T> {
         super.finalize();
     }
 
+    private int creditBatchSize() {
+        if (creditBatchSize > 0) {
+            return Math.min(creditBatchSize, maxSize);
+        }
+        return Math.max(1, maxSize / 4);
+    }
+
+    private DeliveryOptions withCreditHeaders(DeliveryOptions options) {
+        if (creditAddress == null) {
+            return options;
+        }
+        DeliveryOptions copy = new DeliveryOptions(options);
+        MessageHeaders headers = MessageHeaders.copyOf(copy.getHeaders());
+        if (headers == null) {
+            headers = new MessageHeaders();
+        }
+        headers.set(CREDIT_ADDRESS_HEADER_NAME, creditAddress);
+        headers.set(CREDIT_BATCH_HEADER_NAME, Integer.toString(creditBatchSize()));
+        return copy.setHeaders(headers);
+    }
+
     private synchronized <R> void doSend(T data, Handler<AsyncResult<Message<R>>> replyHandler) {
-        if (credits > 0) {
+        doSend(new PendingSend<>(data, replyHandler, null, false));
+    }
+
+    // 排在已有的消息之后发送最后一条消息，lastOptions只用于这一条，发出之后关闭producer
+    synchronized void sendLast(T data, DeliveryOptions lastOptions) {
+        doSend(new PendingSend<>(data, null, withCreditHeaders(lastOptions), true));
+    }
+
+    // 丢弃还没有发出的消息并关闭producer
+    synchronized void cancel() {
+        pending.clear();
+        drainHandler = null;
+        close();
+    }
+
+    private void doSend(PendingSend<T> send) {
+        if (credits > 0 && pending.isEmpty()) {
             credits--;
-            if (replyHandler == null) {
-                bus.send(address, data, options);
-            } else {
-                bus.send(address, data, options, replyHandler);
-            }
+            send(send);
+        } else {
+            pending.add(send);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void send(PendingSend<T> send) {
+        DeliveryOptions sendOptions = send.options != null ? send.options : options;
+        if (send.replyHandler == null) {
+            bus.send(address, send.data, sendOptions);
         } else {
-            pending.add(data);
+            bus.send(address, send.data, sendOptions, send.replyHandler);
+        }
+        if (send.last) {
+            close();
         }
     }
 
     private synchronized void doReceiveCredit(int credit) {
         credits += credit;
+        sendPending();
+        final Handler<Void> theDrainHandler = drainHandler;
+        if (theDrainHandler != null && credits >= maxSize / 2) {
+            this.drainHandler = null;
+            Capz.runOnContext(v -> theDrainHandler.handle(null));
+        }
+    }
+
+    private void sendPending() {
         while (credits > 0) {
-            T data = pending.poll();
+            PendingSend<T> data = pending.poll();
             if (data == null) {
                 break;
             } else {
                 credits--;
-                bus.send(address, data, options);
+                send(data);
             }
         }
-        final Handler<Void> theDrainHandler = drainHandler;
-        if (theDrainHandler != null && credits >= maxSize / 2) {
-            this.drainHandler = null;
-            Capz.runOnContext(v -> theDrainHandler.handle(null));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static class PendingSend<T> {
+        final T data;
+        final Handler replyHandler;
+        // 为null时使用producer的options
+        final DeliveryOptions options;
+        final boolean last;
+
+        PendingSend(T data, Handler replyHandler, DeliveryOptions options, boolean last) {
+            this.data = data;
+            this.replyHandler = replyHandler;
+            this.options = options;
+            this.last = last;
         }
     }
 }
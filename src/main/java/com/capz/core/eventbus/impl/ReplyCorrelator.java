@@ -0,0 +1,230 @@
+package com.capz.core.eventbus.impl;
+
+import com.capz.core.AsyncResult;
+import com.capz.core.Exception.ReplyException;
+import com.capz.core.Handler;
+import com.capz.core.eventbus.Message;
+import com.capz.core.eventbus.ReplyFailure;
+import com.capz.core.impl.AbstractContext;
+import com.capz.core.impl.Future;
+import com.capz.core.impl.TimerService;
+import com.capz.core.impl.TimerWheel;
+import com.capz.core.spi.metrics.EventBusMetrics;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求/回复的关联表，代替为每个请求注册一个回复地址的做法。
+ * <p>
+ * 每个event loop一张表，用long类型的回复ID索引等待回复的handler，超时由该event loop上定时器的时间轮驱动。
+ * 回复ID的低位是表的序号，收到回复时直接定位到对应的表，不经过地址表。
+ * 表只在所属的event loop线程上访问，其他线程的操作提交到该event loop上执行。
+ */
+class ReplyCorrelator {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplyCorrelator.class);
+
+    private final ReplyTable[] tables;
+    private final Map<EventLoop, ReplyTable> tableByLoop = new IdentityHashMap<>();
+    private final int indexBits;
+    private final long indexMask;
+    // 没有安装监控时为null
+    private final EventBusMetrics metrics;
+
+    ReplyCorrelator(EventLoopGroup eventLoopGroup, TimerService timerService, EventBusMetrics metrics) {
+        this.metrics = metrics;
+        List<EventLoop> eventLoops = new ArrayList<>();
+        for (EventExecutor executor : eventLoopGroup) {
+            eventLoops.add((EventLoop) executor);
+        }
+        int bits = 0;
+        while ((1 << bits) < eventLoops.size()) {
+            bits++;
+        }
+        this.indexBits = bits;
+        this.indexMask = (1L << bits) - 1;
+        this.tables = new ReplyTable[eventLoops.size()];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = new ReplyTable(i, eventLoops.get(i), timerService.wheel(eventLoops.get(i)));
+            tableByLoop.put(eventLoops.get(i), tables[i]);
+        }
+    }
+
+    // 在发送请求之前调用，为message分配回复ID
+    <T> PendingReply<T> register(MessageImpl message, AbstractContext context, long timeout,
+                                 Handler<AsyncResult<Message<T>>> replyHandler) {
+        ReplyTable table = tableByLoop.get(context.nettyEventLoop());
+        long id = (table.sequence.incrementAndGet() << indexBits) | table.index;
+        PendingReply<T> pending = new PendingReply<>(table, id, message.address, context, timeout, replyHandler,
+                metrics, metrics != null ? System.nanoTime() : 0);
+        message.replyId = id;
+        // 注册任务在请求发出之前提交，回复在同一个event loop上查找时如果还没有注册，deliver会重新提交一次
+        if (table.eventLoop.inEventLoop()) {
+            table.add(pending);
+        } else {
+            table.eventLoop.execute(() -> table.add(pending));
+        }
+        return pending;
+    }
+
+    // 投递回复，等待回复的handler已经超时或者不存在时丢弃
+    void deliver(MessageImpl reply, boolean inline, int maxInlineDeliveries) {
+        long id = reply.replyTo;
+        int index = (int) (id & indexMask);
+        if (index >= tables.length) {
+            log.debug("Dropping reply with unknown reply id " + id);
+            return;
+        }
+        ReplyTable table = tables[index];
+        if (table.eventLoop.inEventLoop()) {
+            PendingReply<?> pending = table.remove(id);
+            if (pending != null) {
+                pending.complete(reply, inline, maxInlineDeliveries);
+                return;
+            }
+            // 其他线程发出的请求，注册任务已经提交到event loop但可能还没有执行（consumer一次处理一批消息时，
+            // 回复可能先于注册任务到达），重新提交一次，保证排在注册任务之后
+            table.eventLoop.execute(() -> {
+                PendingReply<?> registered = table.remove(id);
+                if (registered != null) {
+                    registered.completeFromEventLoop(reply);
+                }
+            });
+        } else {
+            table.eventLoop.execute(() -> {
+                PendingReply<?> pending = table.remove(id);
+                if (pending != null) {
+                    pending.completeFromEventLoop(reply);
+                }
+            });
+        }
+    }
+
+    <T> void fail(PendingReply<T> pending, ReplyFailure failure, String msg) {
+        ReplyTable table = pending.table;
+        MessageImpl reply = new MessageImpl<>(null, null, null, new ReplyException(failure, msg),
+                CodecManager.REPLY_EXCEPTION_MESSAGE_CODEC, true, null);
+        if (table.eventLoop.inEventLoop()) {
+            if (table.remove(pending.id) != null) {
+                pending.complete(reply, false, 0);
+            }
+        } else {
+            table.eventLoop.execute(() -> {
+                if (table.remove(pending.id) != null) {
+                    pending.completeFromEventLoop(reply);
+                }
+            });
+        }
+    }
+
+    private static class ReplyTable {
+
+        final int index;
+        final EventLoop eventLoop;
+        final AtomicLong sequence = new AtomicLong();
+        // 以下字段只在eventLoop上访问
+        final LongObjectHashMap<PendingReply<?>> pending = new LongObjectHashMap<>();
+        final TimerWheel timeouts;
+
+        ReplyTable(int index, EventLoop eventLoop, TimerWheel timeouts) {
+            this.index = index;
+            this.eventLoop = eventLoop;
+            this.timeouts = timeouts;
+        }
+
+        void add(PendingReply<?> reply) {
+            pending.put(reply.id, reply);
+            if (reply.timeout != -1) {
+                timeouts.schedule(reply, reply.timeout);
+            }
+        }
+
+        PendingReply<?> remove(long id) {
+            PendingReply<?> reply = pending.remove(id);
+            if (reply != null) {
+                timeouts.cancel(reply);
+            }
+            return reply;
+        }
+    }
+
+    static class PendingReply<T> extends TimerWheel.Timeout {
+
+        private final ReplyTable table;
+        private final long id;
+        private final String repliedAddress;
+        private final AbstractContext context;
+        private final long timeout;
+        private final Handler<AsyncResult<Message<T>>> replyHandler;
+        private final EventBusMetrics metrics;
+        private final long sentNanos;
+
+        PendingReply(ReplyTable table, long id, String repliedAddress, AbstractContext context, long timeout,
+                     Handler<AsyncResult<Message<T>>> replyHandler, EventBusMetrics metrics, long sentNanos) {
+            this.metrics = metrics;
+            this.sentNanos = sentNanos;
+            this.table = table;
+            this.id = id;
+            this.repliedAddress = repliedAddress;
+            this.context = context;
+            this.timeout = timeout;
+            this.replyHandler = replyHandler;
+        }
+
+        @Override
+        protected void expire() {
+            table.pending.remove(id);
+            MessageImpl reply = new MessageImpl<>(null, null, null,
+                    new ReplyException(ReplyFailure.TIMEOUT, "Timed out after waiting " + timeout
+                            + "(ms) for a reply. address: " + repliedAddress + ", replyId: " + id),
+                    CodecManager.REPLY_EXCEPTION_MESSAGE_CODEC, true, null);
+            completeFromEventLoop(reply);
+        }
+
+        // 在调用者的任务中，通过context异步执行handler
+        private void complete(MessageImpl reply, boolean inline, int maxInlineDeliveries) {
+            Handler<Void> task = v -> handle(reply);
+            if (!inline || !context.runAtEndOfTask(task, maxInlineDeliveries)) {
+                context.runOnContext(task);
+            }
+        }
+
+        // 在表所属的event loop的独立任务中调用，event loop context可以直接执行
+        private void completeFromEventLoop(MessageImpl reply) {
+            if (context.isEventLoopContext()) {
+                context.executeFromIO(() -> handle(reply));
+            } else {
+                context.runOnContext(v -> handle(reply));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void handle(MessageImpl reply) {
+            Message<T> copied = reply.copyBeforeReceive(true);
+            Object body = copied.body();
+            // 对回复的回复没有请求地址，不统计
+            boolean recordMetrics = metrics != null && repliedAddress != null;
+            if (body instanceof ReplyException) {
+                if (recordMetrics) {
+                    metrics.replyFailure(repliedAddress, ((ReplyException) body).failureType());
+                }
+                replyHandler.handle(Future.failedFuture((ReplyException) body));
+            } else {
+                if (recordMetrics) {
+                    metrics.replyReceived(repliedAddress, System.nanoTime() - sentNanos);
+                }
+                replyHandler.handle(Future.succeededFuture(copied));
+            }
+        }
+    }
+}
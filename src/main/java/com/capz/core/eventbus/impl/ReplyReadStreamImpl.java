@@ -0,0 +1,274 @@
+package com.capz.core.eventbus.impl;
+
+import com.capz.core.AsyncResult;
+import com.capz.core.Exception.ReplyException;
+import com.capz.core.Handler;
+import com.capz.core.eventbus.DeliveryOptions;
+import com.capz.core.eventbus.Message;
+import com.capz.core.eventbus.MessageHeaders;
+import com.capz.core.eventbus.OverflowPolicy;
+import com.capz.core.eventbus.ReplyFailure;
+import com.capz.core.eventbus.ReplyReadStream;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求方的回复流。
+ * <p>
+ * 请求的header中带有本地的流地址，回复方通过{@link ReplyWriteStreamImpl}把回复发到这个地址，
+ * 并先用普通的回复告诉请求方控制地址，取消时向控制地址发送消息。
+ * 流地址上的consumer使用OverflowPolicy.CREDITS，暂停时消息留在mailbox中不返还credit，回复方因此停止发送。
+ * <p>
+ * 回复流开始之后，超过请求的timeout没有收到新的消息（暂停期间不计）时认为回复方已经失联，
+ * 以TIMEOUT的ReplyException结束并注销流地址上的consumer。
+ */
+class ReplyReadStreamImpl<T> implements ReplyReadStream<T> {
+
+    static final String STREAM_ADDRESS_HEADER_NAME = "__Capz.replyStream";
+    static final String STREAM_CONTROL_HEADER_NAME = "__Capz.replyStreamControl";
+    // 最后一条消息带有这个header，body为ReplyException时表示回复方失败
+    static final String STREAM_END_HEADER_NAME = "__Capz.replyStreamEnd";
+
+    private final EventBusImpl bus;
+    private final String streamAddress;
+    private final HandlerRegistration<T> consumer;
+    // 回复流中两条消息之间的最长间隔（毫秒），-1表示不限制
+    private final long idleTimeout;
+    private long idleTimerId = -1;
+    // 最后一次收到消息（或者恢复接收）的时间，每条消息只更新这个字段，由定时器检查
+    private volatile long lastActivity;
+    private Handler<Message<T>> handler;
+    private Handler<Void> endHandler;
+    private Handler<Throwable> exceptionHandler;
+    private boolean paused;
+    private boolean done;
+    private boolean cancelRequested;
+    private String controlAddress;
+    // 结束时还没有设置对应的handler（例如非Capz线程上请求立即失败），设置handler时再通知
+    private Throwable unnotifiedFailure;
+    private boolean unnotifiedEnd;
+    // 回复方只用reply回复了一条消息，暂停期间先保存起来
+    private Message<T> singleReply;
+
+    ReplyReadStreamImpl(EventBusImpl bus, String address, Object message, DeliveryOptions options) {
+        this.bus = bus;
+        this.streamAddress = UUID.randomUUID().toString() + "-stream";
+        this.idleTimeout = options.getTimeout();
+        this.consumer = new HandlerRegistration<>(bus.capzInternal, bus, streamAddress, false);
+        consumer.setOverflowPolicy(OverflowPolicy.CREDITS);
+        // 设置handler之前不投递
+        consumer.pause();
+        consumer.handler(this::handleFrame);
+        DeliveryOptions requestOptions = new DeliveryOptions(options).addHeader(STREAM_ADDRESS_HEADER_NAME, streamAddress);
+        bus.<T>send(address, message, requestOptions, this::handleReply);
+    }
+
+    @Override
+    public synchronized ReplyReadStream<T> handler(Handler<Message<T>> handler) {
+        this.handler = handler;
+        if (handler != null && !paused) {
+            doResume();
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized ReplyReadStream<T> pause() {
+        paused = true;
+        consumer.pause();
+        cancelIdleTimer();
+        return this;
+    }
+
+    @Override
+    public synchronized ReplyReadStream<T> resume() {
+        paused = false;
+        if (handler != null) {
+            doResume();
+        }
+        return this;
+    }
+
+    @Override
+    public ReplyReadStream<T> endHandler(Handler<Void> endHandler) {
+        boolean notify;
+        synchronized (this) {
+            this.endHandler = endHandler;
+            notify = endHandler != null && unnotifiedEnd;
+            if (notify) {
+                unnotifiedEnd = false;
+            }
+        }
+        if (notify) {
+            bus.capzInternal.runOnContext(endHandler);
+        }
+        return this;
+    }
+
+    @Override
+    public ReplyReadStream<T> exceptionHandler(Handler<Throwable> handler) {
+        Throwable failure;
+        synchronized (this) {
+            this.exceptionHandler = handler;
+            failure = handler != null ? unnotifiedFailure : null;
+            if (failure != null) {
+                unnotifiedFailure = null;
+            }
+        }
+        if (failure != null) {
+            bus.capzInternal.runOnContext(v -> handler.handle(failure));
+        }
+        return this;
+    }
+
+    @Override
+    public void cancel() {
+        String theControlAddress;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            theControlAddress = controlAddress;
+            cancelRequested = theControlAddress == null;
+        }
+        consumer.unregister();
+        if (theControlAddress != null) {
+            bus.send(theControlAddress, "cancel");
+        }
+    }
+
+    private void doResume() {
+        consumer.resume();
+        lastActivity = System.nanoTime();
+        scheduleIdleCheck(idleTimeout);
+        Message<T> theSingleReply = singleReply;
+        if (theSingleReply != null) {
+            singleReply = null;
+            bus.capzInternal.runOnContext(v -> deliverSingle(theSingleReply));
+        }
+    }
+
+    // 第一次回复：回复方开始发送回复流，或者只回复了一条消息，或者失败
+    private void handleReply(AsyncResult<Message<T>> ar) {
+        if (ar.failed()) {
+            finish(ar.cause());
+            return;
+        }
+        Message<T> reply = ar.result();
+        String control = MessageHeaders.getFirst(reply.headers(), STREAM_CONTROL_HEADER_NAME);
+        if (control == null) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (paused || handler == null) {
+                    singleReply = reply;
+                    return;
+                }
+            }
+            deliverSingle(reply);
+            return;
+        }
+        boolean cancel;
+        synchronized (this) {
+            controlAddress = control;
+            cancel = cancelRequested;
+            lastActivity = System.nanoTime();
+            scheduleIdleCheck(idleTimeout);
+        }
+        if (cancel) {
+            bus.send(control, "cancel");
+        }
+    }
+
+    private void deliverSingle(Message<T> reply) {
+        Handler<Message<T>> theHandler;
+        synchronized (this) {
+            theHandler = done ? null : handler;
+        }
+        if (theHandler != null) {
+            theHandler.handle(reply);
+            finish(null);
+        }
+    }
+
+    private void handleFrame(Message<T> message) {
+        lastActivity = System.nanoTime();
+        if (MessageHeaders.getFirst(message.headers(), STREAM_END_HEADER_NAME) != null) {
+            Object body = message.body();
+            finish(body instanceof ReplyException ? (ReplyException) body : null);
+            return;
+        }
+        Handler<Message<T>> theHandler;
+        synchronized (this) {
+            theHandler = done ? null : handler;
+        }
+        if (theHandler != null) {
+            theHandler.handle(message);
+        }
+    }
+
+    // 回复流开始之后且没有暂停时才检查，调用时需要持有this的锁
+    private void scheduleIdleCheck(long delay) {
+        if (idleTimeout == -1 || done || paused || handler == null || controlAddress == null || idleTimerId != -1) {
+            return;
+        }
+        idleTimerId = bus.capzInternal.setTimer(delay, id -> checkIdle());
+    }
+
+    private void cancelIdleTimer() {
+        if (idleTimerId != -1) {
+            bus.capzInternal.cancelTimer(idleTimerId);
+            idleTimerId = -1;
+        }
+    }
+
+    private void checkIdle() {
+        String theControlAddress;
+        synchronized (this) {
+            idleTimerId = -1;
+            if (done || paused) {
+                return;
+            }
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+            if (idle < idleTimeout) {
+                scheduleIdleCheck(idleTimeout - idle);
+                return;
+            }
+            theControlAddress = controlAddress;
+        }
+        // 回复方可能还在，通知它停止发送
+        bus.send(theControlAddress, "cancel");
+        finish(new ReplyException(ReplyFailure.TIMEOUT, "Timed out after waiting " + idleTimeout
+                + "(ms) for the next message of the reply stream"));
+    }
+
+    private void finish(Throwable cause) {
+        Handler<Void> theEndHandler;
+        Handler<Throwable> theExceptionHandler;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            theEndHandler = endHandler;
+            theExceptionHandler = exceptionHandler;
+            cancelIdleTimer();
+            if (cause != null) {
+                unnotifiedFailure = theExceptionHandler == null ? cause : null;
+            } else {
+                unnotifiedEnd = theEndHandler == null;
+            }
+        }
+        consumer.unregister();
+        if (cause != null) {
+            if (theExceptionHandler != null) {
+                theExceptionHandler.handle(cause);
+            }
+        } else if (theEndHandler != null) {
+            theEndHandler.handle(null);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.capz.core.eventbus.impl;
+
+import com.capz.core.Exception.ReplyException;
+import com.capz.core.Handler;
+import com.capz.core.eventbus.DeliveryOptions;
+import com.capz.core.eventbus.MessageConsumer;
+import com.capz.core.eventbus.ReplyFailure;
+import com.capz.core.eventbus.ReplyWriteStream;
+
+import java.util.UUID;
+
+/**
+ * 回复方的回复流，见{@link ReplyReadStreamImpl}。
+ * <p>
+ * 回复通过send模式的{@link MessageProducerImpl}发到请求方的流地址，流控使用producer的credit；
+ * 结束或失败时在已经写入的消息之后发送一条带结束header的消息。
+ */
+class ReplyWriteStreamImpl<T> implements ReplyWriteStream<T> {
+
+    private final MessageProducerImpl<Object> producer;
+    private final MessageConsumer<Object> controlConsumer;
+    private boolean ended;
+    private Handler<Throwable> exceptionHandler;
+
+    ReplyWriteStreamImpl(EventBusImpl bus, MessageImpl<?, ?> request, String streamAddress) {
+        // 和EventBus.sender一样使用EventBusOptions中的窗口大小和credit批量
+        this.producer = (MessageProducerImpl<Object>) bus.<Object>sender(streamAddress);
+        String controlAddress = UUID.randomUUID().toString() + "-control";
+        this.controlConsumer = bus.consumer(controlAddress, msg -> cancelled());
+        // 先回复请求，请求方由此知道控制地址
+        request.reply(null, new DeliveryOptions()
+                .addHeader(ReplyReadStreamImpl.STREAM_CONTROL_HEADER_NAME, controlAddress));
+    }
+
+    @Override
+    public synchronized ReplyWriteStream<T> write(T data) {
+        if (!ended) {
+            producer.write(data);
+        }
+        return this;
+    }
+
+    @Override
+    public void end() {
+        finish(null);
+    }
+
+    @Override
+    public void fail(int failureCode, String message) {
+        finish(new ReplyException(ReplyFailure.RECIPIENT_FAILURE, failureCode, message));
+    }
+
+    private void finish(Object body) {
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+        }
+        producer.sendLast(body, new DeliveryOptions().addHeader(ReplyReadStreamImpl.STREAM_END_HEADER_NAME, "1"));
+        controlConsumer.unregister();
+    }
+
+    // 请求方取消
+    private void cancelled() {
+        Handler<Throwable> theExceptionHandler;
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            theExceptionHandler = exceptionHandler;
+        }
+        producer.cancel();
+        controlConsumer.unregister();
+        if (theExceptionHandler != null) {
+            theExceptionHandler.handle(new IllegalStateException("Reply stream cancelled by the requester"));
+        }
+    }
+
+    @Override
+    public ReplyWriteStream<T> setWriteQueueMaxSize(int maxSize) {
+        producer.setWriteQueueMaxSize(maxSize);
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return producer.writeQueueFull();
+    }
+
+    @Override
+    public ReplyWriteStream<T> drainHandler(Handler<Void> handler) {
+        producer.drainHandler(handler);
+        return this;
+    }
+
+    @Override
+    public synchronized ReplyWriteStream<T> exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+}
@@ -0,0 +1,135 @@
+package com.capz.core.eventbus.impl;
+
+import com.capz.core.AsyncResult;
+import com.capz.core.Capz;
+import com.capz.core.Handler;
+import com.capz.core.eventbus.Message;
+import com.capz.core.eventbus.SingleFlightKey;
+import com.capz.core.impl.AbstractContext;
+import com.capz.core.impl.Future;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个地址上的请求合并：key相同的请求在等待回复期间只发送第一个，回复到达后交给所有请求方，
+ * 每个请求方在自己的context上收到自己的一份回复。
+ * replyTtl大于0时，回复在这段时间内可以直接给之后key相同的请求使用。
+ * <p>
+ * 合并的请求共用第一个请求的超时时间。合并的请求仍然计入metrics的messageSent，
+ * 但不会经过发送拦截器，拦截器只看到实际发送的第一个请求。
+ */
+class SingleFlight {
+
+    private final Capz capz;
+    private final SingleFlightKey keyFunction;
+    private final long replyTtl;
+    private final ConcurrentMap<Object, Flight> flights = new ConcurrentHashMap<>();
+
+    SingleFlight(Capz capz, SingleFlightKey keyFunction, long replyTtl) {
+        this.capz = capz;
+        this.keyFunction = keyFunction;
+        this.replyTtl = replyTtl;
+    }
+
+    /**
+     * 返回null表示请求已经合并到正在进行的请求中，不需要发送；
+     * 否则返回发送请求时使用的回复handler
+     */
+    @SuppressWarnings("unchecked")
+    <T> Handler<AsyncResult<Message<T>>> join(MessageImpl message, AbstractContext context,
+                                              Handler<AsyncResult<Message<T>>> replyHandler) {
+        Object key = keyFunction.key(message.sentBody(), message.headers());
+        if (key == null) {
+            return replyHandler;
+        }
+        Waiter waiter = new Waiter(context, (Handler) replyHandler);
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight created = new Flight(key, waiter);
+                if (flights.putIfAbsent(key, created) == null) {
+                    return (Handler) created;
+                }
+            } else if (flight.add(waiter)) {
+                return null;
+            } else {
+                // 缓存的回复已经过期
+                flights.remove(key, flight);
+            }
+        }
+    }
+
+    private static class Waiter {
+        final AbstractContext context;
+        final Handler<AsyncResult<Message<Object>>> handler;
+
+        Waiter(AbstractContext context, Handler<AsyncResult<Message<Object>>> handler) {
+            this.context = context;
+            this.handler = handler;
+        }
+    }
+
+    private class Flight implements Handler<AsyncResult<Message<Object>>> {
+
+        private final Object key;
+        // 以下字段受this保护
+        private List<Waiter> waiters = new ArrayList<>(2);
+        private AsyncResult<Message<Object>> result;
+        private long completedAt;
+
+        Flight(Object key, Waiter first) {
+            this.key = key;
+            waiters.add(first);
+        }
+
+        synchronized boolean add(Waiter waiter) {
+            if (result == null) {
+                waiters.add(waiter);
+                return true;
+            }
+            if (System.nanoTime() - completedAt < TimeUnit.MILLISECONDS.toNanos(replyTtl)) {
+                AsyncResult<Message<Object>> cached = copy(result);
+                waiter.context.runOnContext(v -> waiter.handler.handle(cached));
+                return true;
+            }
+            return false;
+        }
+
+        // 第一个请求的回复，在第一个请求方的context上调用
+        @Override
+        public void handle(AsyncResult<Message<Object>> ar) {
+            List<Waiter> toNotify;
+            synchronized (this) {
+                result = ar;
+                completedAt = System.nanoTime();
+                toNotify = waiters;
+                waiters = null;
+            }
+            if (replyTtl == 0 || ar.failed()) {
+                flights.remove(key, this);
+            } else {
+                capz.setTimer(replyTtl, id -> flights.remove(key, this));
+            }
+            Waiter first = toNotify.get(0);
+            for (int i = 1; i < toNotify.size(); i++) {
+                Waiter waiter = toNotify.get(i);
+                AsyncResult<Message<Object>> copied = copy(ar);
+                waiter.context.runOnContext(v -> waiter.handler.handle(copied));
+            }
+            first.handler.handle(ar);
+        }
+
+        // 每个请求方拿到自己的一份回复
+        @SuppressWarnings("unchecked")
+        private AsyncResult<Message<Object>> copy(AsyncResult<Message<Object>> ar) {
+            if (ar.succeeded() && ar.result() instanceof MessageImpl) {
+                return Future.succeededFuture(((MessageImpl) ar.result()).copyBeforeReceive());
+            }
+            return ar;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.capz.core.eventbus.impl.clustered;
+
+import com.capz.core.AsyncResult;
+import com.capz.core.CapzInternal;
+import com.capz.core.CapzOptions;
+import com.capz.core.Exception.ReplyException;
+import com.capz.core.Handler;
+import com.capz.core.buffer.Buffer;
+import com.capz.core.eventbus.EventBusOptions;
+import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ReplyFailure;
+import com.capz.core.eventbus.impl.CodecManager;
+import com.capz.core.eventbus.impl.EventBusImpl;
+import com.capz.core.eventbus.impl.HandlerHolder;
+import com.capz.core.eventbus.impl.MessageImpl;
+import com.capz.core.impl.Future;
+import com.capz.core.net.SocketAddress;
+import com.capz.core.net.impl.AsyncResolveConnectHelper;
+import com.capz.core.net.impl.ServerID;
+import com.capz.core.net.impl.transport.Transport;
+import com.capz.core.spi.cluster.NodeRegistry;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 集群模式下的事件总线。
+ * <p>
+ * 每个节点监听一个TCP端口接收其他节点发来的消息，并在{@link NodeRegistry}中登记自己订阅的地址。
+ * 发送消息时先查询地址的订阅节点，send选择其中一个节点，publish发往所有节点。
+ * 到每个远程节点只保持一个连接（见{@link ConnectionHolder}），回复消息直接发回给请求的发送节点。
+ */
+public class ClusteredEventBus extends EventBusImpl {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusteredEventBus.class);
+
+    public static final String PING_ADDRESS = "__capz_ping";
+
+    private static final byte PONG_BYTE = 1;
+    // 服务端对ping的应答：帧长度1 + 1个字节
+    private static final ByteBuf PONG = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[]{0, 0, 0, 1, PONG_BYTE}));
+
+    private final EventBusOptions options;
+    private final NodeRegistry nodeRegistry;
+    private final ConcurrentMap<ServerID, ConnectionHolder> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger sendPos = new AtomicInteger();
+    private volatile Channel serverChannel;
+    private volatile ServerID serverID;
+
+    public ClusteredEventBus(CapzInternal capzInternal, CapzOptions options, NodeRegistry nodeRegistry) {
+        super(capzInternal, options.getEventBusOptions());
+        this.options = options.getEventBusOptions();
+        this.nodeRegistry = nodeRegistry;
+    }
+
+    // 去掉长度字段之后的帧是否是pong
+    static boolean isPong(ByteBuf frame) {
+        return frame.readableBytes() == 1 && frame.getByte(frame.readerIndex()) == PONG_BYTE;
+    }
+
+    static ChannelHandler createFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4);
+    }
+
+    @Override
+    public synchronized void start(Handler<AsyncResult<Void>> completionHandler) {
+        if (started) {
+            throw new IllegalStateException("Already started");
+        }
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(capzInternal.getAcceptorEventLoopGroup(), capzInternal.getEventLoopGroup());
+        if (options.getAcceptBacklog() != -1) {
+            bootstrap.option(ChannelOption.SO_BACKLOG, options.getAcceptBacklog());
+        }
+        bootstrap.childOption(ChannelOption.TCP_NODELAY, true);
+        bootstrap.childHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast("frameDecoder", createFrameDecoder());
+                ch.pipeline().addLast("handler", new ServerHandler());
+            }
+        });
+
+        AsyncResolveConnectHelper bindFuture = AsyncResolveConnectHelper.doBind(capzInternal,
+                SocketAddress.inetSocketAddress(options.getPort(), options.getHost()), bootstrap);
+        bindFuture.addListener(res -> {
+            if (res.failed()) {
+                completionHandler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            serverChannel = res.result();
+            int port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+            int publicPort = options.getClusterPublicPort() != -1 ? options.getClusterPublicPort() : port;
+            String publicHost = options.getClusterPublicHost() != null ? options.getClusterPublicHost() : options.getHost();
+            serverID = new ServerID(publicPort, publicHost);
+            nodeRegistry.join(serverID, ar -> {
+                if (ar.succeeded()) {
+                    started = true;
+                }
+                completionHandler.handle(ar);
+            });
+        });
+    }
+
+    @Override
+    public void close(Handler<AsyncResult<Void>> completionHandler) {
+        if (!started) {
+            // start失败，没有加入集群，端口可能已经监听（加入集群失败时）
+            Channel channel = serverChannel;
+            if (channel != null) {
+                channel.close().addListener(f -> closeCompleted(completionHandler));
+            } else {
+                closeCompleted(completionHandler);
+            }
+            return;
+        }
+        super.close(ar -> {
+            List<ConnectionHolder> holders = new ArrayList<>(connections.values());
+            connections.clear();
+            for (ConnectionHolder holder : holders) {
+                holder.close();
+            }
+            nodeRegistry.leave(serverID, leaveResult -> {
+                if (leaveResult.failed()) {
+                    log.error("Failed to leave the cluster", leaveResult.cause());
+                }
+                serverChannel.close().addListener(f -> closeCompleted(completionHandler));
+            });
+        });
+    }
+
+    private void closeCompleted(Handler<AsyncResult<Void>> completionHandler) {
+        if (completionHandler != null) {
+            capzInternal.runOnContext(v -> completionHandler.handle(Future.succeededFuture()));
+        }
+    }
+
+    public ServerID serverID() {
+        return serverID;
+    }
+
+    @Override
+    protected MessageImpl newMessage(boolean send, String address, Map<String, List<String>> headers, Object body, String codecName) {
+        MessageCodec codec = codecManager.lookupCodec(address, body, codecName);
+        @SuppressWarnings("unchecked")
+        ClusteredMessage msg = new ClusteredMessage(serverID, address, null, headers, body, codec, send, this);
+        return msg;
+    }
+
+    // 消息可能发往其他节点，需要装箱后由codec编码
+    @Override
+    protected MessageImpl newLongMessage(boolean send, String address, long value) {
+        return createMessage(send, address, null, value, null);
+    }
+
+    @Override
+    protected MessageImpl newDoubleMessage(boolean send, String address, double value) {
+        return createMessage(send, address, null, value, null);
+    }
+
+    @Override
+    protected <T> void addRegistration(boolean newAddress, String address, boolean localOnly,
+                                       Handler<AsyncResult<Void>> completionHandler) {
+        // 本地consumer不需要让其他节点知道，通配符订阅只在本节点内匹配
+        if (newAddress && !localOnly && !isPattern(address)) {
+            nodeRegistry.addSubscription(address, serverID, completionHandler);
+        } else {
+            completionHandler.handle(Future.succeededFuture());
+        }
+    }
+
+    @Override
+    protected <T> void removeRegistration(HandlerHolder lastHolder, String address,
+                                          Handler<AsyncResult<Void>> completionHandler) {
+        if (lastHolder != null && !lastHolder.isLocalOnly() && !isPattern(address)) {
+            nodeRegistry.removeSubscription(address, serverID, ar -> {
+                if (ar.failed()) {
+                    log.error("Failed to remove subscription", ar.cause());
+                }
+                callCompletionHandlerAsync(completionHandler);
+            });
+        } else {
+            callCompletionHandlerAsync(completionHandler);
+        }
+    }
+
+    @Override
+    protected <T> void sendOrPub(SendContextImpl<T> sendContext) {
+        String address = sendContext.message.address();
+        nodeRegistry.subscribers(address, ar -> {
+            if (ar.succeeded()) {
+                sendToSubs(ar.result(), sendContext);
+            } else {
+                log.error("Failed to send message", ar.cause());
+            }
+        });
+    }
+
+    @Override
+    protected <T> void sendReply(SendContextImpl<T> sendContext, MessageImpl replierMessage) {
+        ClusteredMessage replier = (ClusteredMessage) replierMessage;
+        if (replier.isFromWire() && !replier.getSender().equals(serverID)) {
+            sendRemote(replier.getSender(), (ClusteredMessage) sendContext.message);
+        } else {
+            super.sendReply(sendContext, replierMessage);
+        }
+    }
+
+    @Override
+    protected boolean isMessageLocal(MessageImpl msg) {
+        return !((ClusteredMessage) msg).isFromWire();
+    }
+
+    Transport transport() {
+        return capzInternal.transport();
+    }
+
+    void connectionClosed(ServerID theServerID, ConnectionHolder holder, boolean nodeDead) {
+        // 连接正常关闭（对方重启连接、空闲断开等）时只移除连接，下次发送时重新连接；
+        // 只有对方节点失联时才删除它的订阅。关闭事件总线时连接已经从map中移除，此时也不能删除
+        if (connections.remove(theServerID, holder) && nodeDead) {
+            nodeRegistry.removeNode(theServerID, ar -> {
+                if (ar.failed()) {
+                    log.error("Failed to remove subscriptions of node " + theServerID, ar.cause());
+                }
+            });
+        }
+    }
+
+    private <T> void sendToSubs(List<ServerID> subs, SendContextImpl<T> sendContext) {
+        ClusteredMessage message = (ClusteredMessage) sendContext.message;
+        if (subs.isEmpty()) {
+            // 只有本地consumer（或者没有consumer）
+            deliverMessageLocally(sendContext);
+        } else if (message.isSend()) {
+            ServerID sub = subs.get((sendPos.getAndIncrement() & Integer.MAX_VALUE) % subs.size());
+            if (sub.equals(serverID)) {
+                deliverMessageLocally(sendContext);
+            } else {
+                sendRemote(sub, message);
+            }
+        } else {
+            deliverMessageLocally(message);
+            for (ServerID sub : subs) {
+                if (!sub.equals(serverID)) {
+                    sendRemote(sub, message);
+                }
+            }
+        }
+    }
+
+    private void sendRemote(ServerID theServerID, ClusteredMessage message) {
+        ConnectionHolder holder = connections.get(theServerID);
+        if (holder == null) {
+            holder = new ConnectionHolder(this, theServerID, options, capzInternal.getEventLoopGroup().next());
+            ConnectionHolder prevHolder = connections.putIfAbsent(theServerID, holder);
+            if (prevHolder != null) {
+                holder = prevHolder;
+            } else {
+                holder.connect();
+            }
+        }
+        holder.writeMessage(message);
+    }
+
+    private void receive(Buffer frame) {
+        ClusteredMessage received = new ClusteredMessage();
+        try {
+            received.readFromWire(frame, codecManager);
+        } catch (Exception e) {
+            log.error("Failed to decode message", e);
+            return;
+        }
+        if (received.replyTo() != 0) {
+            deliverReply(received, false);
+        } else if (!deliverMessageLocally(received) && received.isSend() && received.replyId() != 0) {
+            received.reply(new ReplyException(ReplyFailure.NO_HANDLERS, "No handlers for address " + received.address()));
+        }
+    }
+
+    private class ServerHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf frame = (ByteBuf) msg;
+            try {
+                byte codecID = frame.getByte(frame.readerIndex() + ClusteredMessage.CODEC_ID_POS);
+                if (codecID == CodecManager.PING_MESSAGE_CODEC.systemCodecID()) {
+                    ctx.writeAndFlush(PONG.duplicate(), ctx.voidPromise());
+                } else {
+                    receive(Buffer.buffer(ByteBufUtil.getBytes(frame)));
+                }
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            log.warn("Cluster connection failure", cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.capz.core.eventbus.impl.clustered;
+
+import com.capz.core.buffer.Buffer;
+import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.MessageHeaders;
+import com.capz.core.eventbus.impl.CodecManager;
+import com.capz.core.eventbus.impl.EventBusImpl;
+import com.capz.core.eventbus.impl.MessageImpl;
+import com.capz.core.net.impl.ServerID;
+import io.netty.util.CharsetUtil;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可以在节点间传输的消息。
+ * <p>
+ * 线上格式（所有整数为大端）：
+ * <pre>
+ * int     帧长度（不包括自身）
+ * byte    协议版本
+ * byte    systemCodecID，用户codec为-1，此时后面紧跟codec名称
+ * byte    1: send, 0: publish
+ * string  address，回复消息的长度为0
+ * long    replyId，0表示不需要回复
+ * long    replyTo，本消息是回复时对应请求的replyId，否则为0
+ * long    距离请求方等待回复超时的剩余毫秒数，0表示没有超时（各节点的时钟不同，只传剩余时间）
+ * int     发送节点端口
+ * string  发送节点host
+ * ...     header，见{@link MessageHeaders}，没有header时只有2字节的0
+ * ...     body，由codec的encodeToWire写入
+ * </pre>
+ * string均为 int 长度 + UTF-8 字节。
+ */
+public class ClusteredMessage<U, V> extends MessageImpl<U, V> {
+
+    public static final byte WIRE_PROTOCOL_VERSION = 4;
+
+    // 帧中codec id的位置（帧长度已被解码器去掉）
+    static final int CODEC_ID_POS = 1;
+
+    private ServerID sender;
+    private Buffer wireBuffer;
+    private int bodyPos;
+    private boolean fromWire;
+
+    public ClusteredMessage() {
+    }
+
+    public ClusteredMessage(ServerID sender, String address, String replyAddress, Map headers, U sentBody,
+                            MessageCodec<U, V> messageCodec, boolean send, EventBusImpl bus) {
+        super(address, replyAddress, headers, sentBody, messageCodec, send, bus);
+        this.sender = sender;
+    }
+
+    protected ClusteredMessage(ClusteredMessage<U, V> other, boolean transfer) {
+        super(other, transfer);
+        this.sender = other.sender;
+        if (other.sentBody == null) {
+            this.wireBuffer = other.wireBuffer;
+            this.bodyPos = other.bodyPos;
+        }
+        this.fromWire = other.fromWire;
+    }
+
+    @Override
+    public ClusteredMessage<U, V> copyBeforeReceive(boolean singleReceiver) {
+        return new ClusteredMessage<>(this, canTransfer(singleReceiver));
+    }
+
+    @Override
+    public V body() {
+        // 从网络接收到的消息延迟到第一次使用时才解码
+        if (receivedBody == null && wireBuffer != null) {
+            receivedBody = messageCodec.decodeFromWire(bodyPos, wireBuffer);
+            wireBuffer = null;
+        }
+        return super.body();
+    }
+
+    public ServerID getSender() {
+        return sender;
+    }
+
+    public boolean isFromWire() {
+        return fromWire;
+    }
+
+    @Override
+    protected boolean isLocal() {
+        return !fromWire;
+    }
+
+    // 编码成一个完整的帧，包括最前面的帧长度
+    public Buffer encodeToWire() {
+        Buffer buffer = Buffer.buffer(128);
+        buffer.appendInt(0);
+        buffer.appendByte(WIRE_PROTOCOL_VERSION);
+        byte systemCodecID = messageCodec.systemCodecID();
+        buffer.appendByte(systemCodecID);
+        if (systemCodecID == -1) {
+            writeString(buffer, messageCodec.name());
+        }
+        buffer.appendByte(send ? (byte) 1 : (byte) 0);
+        // 回复消息的地址由replyTo生成，不需要写出
+        writeString(buffer, replyTo == 0 ? address : null);
+        buffer.appendLong(replyId);
+        buffer.appendLong(replyTo);
+        buffer.appendLong(deadline == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        buffer.appendInt(sender.port);
+        writeString(buffer, sender.host);
+        encodeHeaders(buffer);
+        messageCodec.encodeToWire(buffer, sentBody);
+        buffer.setInt(0, buffer.length() - 4);
+        return buffer;
+    }
+
+    // 从帧中解码（不包括帧长度），codec找不到时抛出IllegalStateException
+    @SuppressWarnings("unchecked")
+    public void readFromWire(Buffer buffer, CodecManager codecManager) {
+        int pos = 0;
+        byte version = buffer.getByte(pos);
+        if (version != WIRE_PROTOCOL_VERSION) {
+            throw new IllegalStateException("Invalid wire protocol version " + version + " should be " + WIRE_PROTOCOL_VERSION);
+        }
+        pos++;
+        byte systemCodecID = buffer.getByte(pos);
+        pos++;
+        if (systemCodecID == -1) {
+            int length = buffer.getInt(pos);
+            pos += 4;
+            String codecName = buffer.getString(pos, pos + length);
+            pos += length;
+            messageCodec = codecManager.getCodec(codecName);
+            if (messageCodec == null) {
+                throw new IllegalStateException("No message codec registered with name " + codecName);
+            }
+        } else {
+            messageCodec = codecManager.systemCodecs()[systemCodecID];
+        }
+        send = buffer.getByte(pos) == 1;
+        pos++;
+        int length = buffer.getInt(pos);
+        pos += 4;
+        if (length != 0) {
+            address = buffer.getString(pos, pos + length);
+            pos += length;
+        }
+        replyId = buffer.getLong(pos);
+        pos += 8;
+        replyTo = buffer.getLong(pos);
+        pos += 8;
+        long remaining = buffer.getLong(pos);
+        pos += 8;
+        if (remaining != 0) {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remaining);
+        }
+        int senderPort = buffer.getInt(pos);
+        pos += 4;
+        length = buffer.getInt(pos);
+        pos += 4;
+        String senderHost = buffer.getString(pos, pos + length);
+        pos += length;
+        sender = new ServerID(senderPort, senderHost);
+        pos = decodeHeaders(buffer, pos);
+        wireBuffer = buffer;
+        bodyPos = pos;
+        fromWire = true;
+    }
+
+    private void encodeHeaders(Buffer buffer) {
+        if (headers == null) {
+            buffer.appendUnsignedShort(0);
+        } else {
+            headers.encodeToWire(buffer);
+        }
+    }
+
+    private int decodeHeaders(Buffer buffer, int pos) {
+        if (buffer.getUnsignedShort(pos) == 0) {
+            return pos + 2;
+        }
+        MessageHeaders decoded = new MessageHeaders();
+        pos = decoded.decodeFromWire(pos, buffer);
+        headers = decoded;
+        return pos;
+    }
+
+    private static void writeString(Buffer buffer, String str) {
+        if (str == null) {
+            buffer.appendInt(0);
+        } else {
+            byte[] bytes = str.getBytes(CharsetUtil.UTF_8);
+            buffer.appendInt(bytes.length);
+            buffer.appendBytes(bytes);
+        }
+    }
+}
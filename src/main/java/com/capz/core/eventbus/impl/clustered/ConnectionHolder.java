@@ -0,0 +1,209 @@
+package com.capz.core.eventbus.impl.clustered;
+
+import com.capz.core.eventbus.EventBusOptions;
+import com.capz.core.eventbus.impl.CodecManager;
+import com.capz.core.net.impl.ServerID;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 到某个远程节点的连接，所有发往该节点的消息都复用这一个连接。
+ * <p>
+ * 写操作都在连接所在的event loop上执行，同一个event loop任务中的多次写入只会flush一次，
+ * 减少系统调用。连接建立之前的消息先缓存在pending中，连接建立后按顺序写出。
+ */
+class ConnectionHolder {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionHolder.class);
+
+    private final ClusteredEventBus eventBus;
+    private final ServerID serverID;
+    private final EventBusOptions options;
+    private final EventLoop eventLoop;
+    private final Queue<ByteBuf> pending = new ArrayDeque<>();
+    private final Runnable flushTask = this::flush;
+    private Channel channel;
+    private boolean connected;
+    private boolean closed;
+    private int reconnectAttempts;
+    // 以下字段只在eventLoop上访问
+    private boolean flushScheduled;
+    private ScheduledFuture<?> pingFuture;
+    private ScheduledFuture<?> pongTimeout;
+
+    ConnectionHolder(ClusteredEventBus eventBus, ServerID serverID, EventBusOptions options, EventLoop eventLoop) {
+        this.eventBus = eventBus;
+        this.serverID = serverID;
+        this.options = options;
+        this.eventLoop = eventLoop;
+    }
+
+    void connect() {
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(eventLoop);
+        eventBus.transport().configure(bootstrap);
+        bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, options.getConnectTimeout());
+        bootstrap.option(ChannelOption.TCP_NODELAY, true);
+        bootstrap.handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast("frameDecoder", ClusteredEventBus.createFrameDecoder());
+                ch.pipeline().addLast("handler", new PongHandler());
+            }
+        });
+        bootstrap.connect(serverID.host, serverID.port).addListener((ChannelFuture future) -> {
+            if (future.isSuccess()) {
+                connected(future.channel());
+            } else {
+                connectFailed(future.cause());
+            }
+        });
+    }
+
+    // 可以在任意线程上调用
+    void writeMessage(ClusteredMessage message) {
+        ByteBuf data = message.encodeToWire().getByteBuf();
+        synchronized (this) {
+            if (closed) {
+                log.warn("Connection to " + serverID + " is closed, dropping message for address " + message.address());
+                return;
+            }
+            if (!connected) {
+                pending.add(data);
+                return;
+            }
+        }
+        if (eventLoop.inEventLoop()) {
+            write(data);
+        } else {
+            eventLoop.execute(() -> write(data));
+        }
+    }
+
+    void close() {
+        close(false);
+    }
+
+    // nodeDead为true时对方节点已经失联（ping超时或者重连失败），同时移除它在注册表中的订阅
+    private synchronized void close(boolean nodeDead) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // 还没有写出的消息不会再发送，释放它们的ByteBuf
+        ByteBuf data;
+        while ((data = pending.poll()) != null) {
+            ReferenceCountUtil.release(data);
+        }
+        if (pingFuture != null) {
+            pingFuture.cancel(false);
+        }
+        if (pongTimeout != null) {
+            pongTimeout.cancel(false);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        eventBus.connectionClosed(serverID, this, nodeDead);
+    }
+
+    private synchronized void connected(Channel channel) {
+        if (closed) {
+            channel.close();
+            return;
+        }
+        this.channel = channel;
+        this.connected = true;
+        channel.closeFuture().addListener(f -> close());
+        // 在event loop上按顺序写出连接建立前缓存的消息
+        ByteBuf data;
+        while ((data = pending.poll()) != null) {
+            write(data);
+        }
+        schedulePing();
+    }
+
+    private synchronized void connectFailed(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        if (reconnectAttempts < options.getReconnectAttempts()) {
+            reconnectAttempts++;
+            log.warn("Connecting to server " + serverID + " failed, reconnecting in " + options.getReconnectInterval() + "ms", cause);
+            eventLoop.schedule(this::connect, options.getReconnectInterval(), TimeUnit.MILLISECONDS);
+        } else {
+            log.warn("Connecting to server " + serverID + " failed", cause);
+            close(true);
+        }
+    }
+
+    private void write(ByteBuf data) {
+        channel.write(data, channel.voidPromise());
+        if (!flushScheduled) {
+            flushScheduled = true;
+            // 在当前任务结束后统一flush
+            eventLoop.execute(flushTask);
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        channel.flush();
+    }
+
+    private void schedulePing() {
+        long interval = options.getClusterPingInterval();
+        pingFuture = eventLoop.scheduleAtFixedRate(() -> {
+            if (pongTimeout == null) {
+                pongTimeout = eventLoop.schedule(() -> {
+                    log.warn("No pong from server " + serverID + " - will consider it dead");
+                    close(true);
+                }, options.getClusterPingReplyInterval(), TimeUnit.MILLISECONDS);
+            }
+            ClusteredMessage ping = new ClusteredMessage<>(eventBus.serverID(), ClusteredEventBus.PING_ADDRESS, null,
+                    null, null, CodecManager.PING_MESSAGE_CODEC, true, eventBus);
+            write(ping.encodeToWire().getByteBuf());
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private class PongHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf frame = (ByteBuf) msg;
+            try {
+                if (!ClusteredEventBus.isPong(frame)) {
+                    log.warn("Unexpected frame from server " + serverID + ", length: " + frame.readableBytes());
+                    return;
+                }
+            } finally {
+                ReferenceCountUtil.release(frame);
+            }
+            if (pongTimeout != null) {
+                pongTimeout.cancel(false);
+                pongTimeout = null;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            log.warn("Connection to server " + serverID + " failed", cause);
+            close();
+        }
+    }
+}
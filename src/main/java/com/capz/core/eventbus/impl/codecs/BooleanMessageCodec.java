@@ -2,9 +2,9 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
-public class BooleanMessageCodec implements MessageCodec<Boolean, Boolean> {
+public class BooleanMessageCodec implements ImmutableMessageCodec<Boolean, Boolean> {
 
     @Override
     public void encodeToWire(Buffer buffer, Boolean b) {
@@ -3,10 +3,10 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
 
-public class ByteMessageCodec implements MessageCodec<Byte, Byte> {
+public class ByteMessageCodec implements ImmutableMessageCodec<Byte, Byte> {
 
     @Override
     public void encodeToWire(Buffer buffer, Byte b) {
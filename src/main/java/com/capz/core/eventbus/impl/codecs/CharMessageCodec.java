@@ -1,9 +1,9 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
-public class CharMessageCodec implements MessageCodec<Character, Character> {
+public class CharMessageCodec implements ImmutableMessageCodec<Character, Character> {
 
     @Override
     public void encodeToWire(Buffer buffer, Character chr) {
@@ -1,10 +1,10 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
 
-public class DoubleMessageCodec implements MessageCodec<Double, Double> {
+public class DoubleMessageCodec implements ImmutableMessageCodec<Double, Double> {
 
     @Override
     public void encodeToWire(Buffer buffer, Double d) {
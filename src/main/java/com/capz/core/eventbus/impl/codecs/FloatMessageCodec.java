@@ -1,10 +1,10 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
 
-public class FloatMessageCodec implements MessageCodec<Float, Float> {
+public class FloatMessageCodec implements ImmutableMessageCodec<Float, Float> {
 
     @Override
     public void encodeToWire(Buffer buffer, Float f) {
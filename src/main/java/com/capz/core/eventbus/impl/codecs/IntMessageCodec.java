@@ -1,10 +1,10 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
 
-public class IntMessageCodec implements MessageCodec<Integer, Integer> {
+public class IntMessageCodec implements ImmutableMessageCodec<Integer, Integer> {
 
     @Override
     public void encodeToWire(Buffer buffer, Integer i) {
@@ -1,9 +1,9 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
-public class LongMessageCodec implements MessageCodec<Long, Long> {
+public class LongMessageCodec implements ImmutableMessageCodec<Long, Long> {
 
     @Override
     public void encodeToWire(Buffer buffer, Long l) {
@@ -1,10 +1,10 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
 
-public class NullMessageCodec implements MessageCodec<String, String> {
+public class NullMessageCodec implements ImmutableMessageCodec<String, String> {
 
     @Override
     public void encodeToWire(Buffer buffer, String s) {
@@ -2,12 +2,12 @@ package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.Exception.ReplyException;
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 import com.capz.core.eventbus.ReplyFailure;
 import io.netty.util.CharsetUtil;
 
 
-public class ReplyExceptionMessageCodec implements MessageCodec<ReplyException, ReplyException> {
+public class ReplyExceptionMessageCodec implements ImmutableMessageCodec<ReplyException, ReplyException> {
 
     @Override
     public void encodeToWire(Buffer buffer, ReplyException body) {
@@ -1,10 +1,10 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 
 
-public class ShortMessageCodec implements MessageCodec<Short, Short> {
+public class ShortMessageCodec implements ImmutableMessageCodec<Short, Short> {
 
     @Override
     public void encodeToWire(Buffer buffer, Short s) {
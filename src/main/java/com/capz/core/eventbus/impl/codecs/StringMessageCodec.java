@@ -2,10 +2,10 @@
 package com.capz.core.eventbus.impl.codecs;
 
 import com.capz.core.buffer.Buffer;
-import com.capz.core.eventbus.MessageCodec;
+import com.capz.core.eventbus.ImmutableMessageCodec;
 import io.netty.util.CharsetUtil;
 
-public class StringMessageCodec implements MessageCodec<String, String> {
+public class StringMessageCodec implements ImmutableMessageCodec<String, String> {
 
     @Override
     public void encodeToWire(Buffer buffer, String s) {
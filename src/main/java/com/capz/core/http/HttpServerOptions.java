@@ -38,6 +38,10 @@ public class HttpServerOptions extends NetServerOptions {
 
     public static final int DEFAULT_DECODER_INITIAL_BUFFER_SIZE = 128;
 
+    // 监听socket的个数，大于1时需要native传输层，用SO_REUSEPORT绑定多个socket，每个socket在自己的event loop上accept；
+    // JDK传输层上大于1的值被忽略（记录警告），只绑定一个socket
+    public static final int DEFAULT_ACCEPTOR_COUNT = 1;
+
     private boolean compressionSupported;
     private int compressionLevel;
     private boolean handle100ContinueAutomatically;
@@ -47,6 +51,7 @@ public class HttpServerOptions extends NetServerOptions {
     private boolean decompressionSupported;
     private boolean acceptUnmaskedFrames;
     private int decoderInitialBufferSize;
+    private int acceptorCount;
 
 
     public HttpServerOptions() {
@@ -67,6 +72,7 @@ public class HttpServerOptions extends NetServerOptions {
         this.decompressionSupported = other.isDecompressionSupported();
         this.acceptUnmaskedFrames = other.isAcceptUnmaskedFrames();
         this.decoderInitialBufferSize = other.getDecoderInitialBufferSize();
+        this.acceptorCount = other.getAcceptorCount();
     }
 
 
@@ -82,6 +88,7 @@ public class HttpServerOptions extends NetServerOptions {
         decompressionSupported = DEFAULT_DECOMPRESSION_SUPPORTED;
         acceptUnmaskedFrames = DEFAULT_ACCEPT_UNMASKED_FRAMES;
         decoderInitialBufferSize = DEFAULT_DECODER_INITIAL_BUFFER_SIZE;
+        acceptorCount = DEFAULT_ACCEPTOR_COUNT;
     }
 
 }
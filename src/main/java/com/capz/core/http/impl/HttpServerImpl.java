@@ -118,7 +118,10 @@ public class HttpServerImpl implements HttpServer {
             if (shared == null || port == 0) {
                 serverChannelGroup = new DefaultChannelGroup("capz-acceptor-channels", GlobalEventExecutor.INSTANCE);
                 ServerBootstrap bootstrap = new ServerBootstrap();
-                bootstrap.group(capz.getAcceptorEventLoopGroup(), availableWorkers);
+                int acceptorCount = acceptorCount();
+                // 多个监听socket时放在不同的event loop上accept，单个acceptor线程不再是瓶颈
+                bootstrap.group(acceptorCount > 1 ? capz.getEventLoopGroup() : capz.getAcceptorEventLoopGroup(),
+                        availableWorkers);
                 //applyConnectionOptions(bootstrap);
 
                 bootstrap.childHandler(new ChannelInitializer<Channel>() {
@@ -136,7 +139,8 @@ public class HttpServerImpl implements HttpServer {
                 addHandlers(this, listenContext);
 
                 try {
-                    bindFuture = AsyncResolveConnectHelper.doBind(capz, SocketAddress.inetSocketAddress(port, host), bootstrap);
+                    bindFuture = AsyncResolveConnectHelper.doBind(capz, SocketAddress.inetSocketAddress(port, host),
+                            options, bootstrap, acceptorCount);
 
                     // doBind是异步绑定的，addListener在doBind后面才调用，如果只是简单地保存handler会有问题，因此在
                     // addListener时要注意是否已经绑定完毕，如果绑定完毕直接调用listener
@@ -146,7 +150,7 @@ public class HttpServerImpl implements HttpServer {
                         } else {
                             Channel serverChannel = res.result();
                             HttpServerImpl.this.actualPort = ((InetSocketAddress) serverChannel.localAddress()).getPort();
-                            serverChannelGroup.add(serverChannel);
+                            serverChannelGroup.addAll(bindFuture.channels());
                         }
                     });
 
@@ -192,6 +196,19 @@ public class HttpServerImpl implements HttpServer {
     }
 
 
+    // 实际使用的监听socket个数，SO_REUSEPORT只有native传输层支持，不支持时退回一个
+    private int acceptorCount() {
+        int count = options.getAcceptorCount();
+        if (count <= 1) {
+            return 1;
+        }
+        if (!capz.transport().isNative()) {
+            log.warn("acceptorCount " + count + " requires the native transport, binding a single acceptor");
+            return 1;
+        }
+        return count;
+    }
+
     @Override
     public synchronized HttpServer requestHandler(Handler<HttpServerRequest> handler) {
         requestStream.handler(handler);
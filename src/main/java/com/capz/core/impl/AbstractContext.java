@@ -9,6 +9,7 @@ import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
@@ -50,6 +51,10 @@ public abstract class AbstractContext implements ContextInternal {
     protected final WorkerExecutor internalBlockingPool;
     final TaskQueue orderedTasks;
     protected final TaskQueue internalOrderedTasks;
+    // 以下字段只在event loop context的线程上访问
+    private boolean executingTask;
+    private int endOfTaskCount;
+    private ArrayDeque<Handler<Void>> endOfTaskHandlers;
 
     protected AbstractContext(CapzInternal capzInternal, WorkerExecutor internalBlockingPool,
                               WorkerExecutor workerPool, String deploymentID, ClassLoader tccl) {
@@ -75,11 +80,25 @@ public abstract class AbstractContext implements ContextInternal {
         Thread current = Thread.currentThread();
         if (current instanceof CapzThread) {
             setContext((CapzThread) current, context);
+        } else if (VirtualThreads.isCapzVirtualThread()) {
+            setVirtualThreadContext(context);
         } else {
             throw new IllegalStateException("Attempt to setContext on non Capz thread " + Thread.currentThread());
         }
     }
 
+    // 虚拟线程不是CapzThread，context保存在ThreadLocal中
+    private static void setVirtualThreadContext(AbstractContext context) {
+        VirtualThreads.setContext(context);
+        if (!DISABLE_TCCL) {
+            if (context != null) {
+                context.setTCCL();
+            } else {
+                Thread.currentThread().setContextClassLoader(null);
+            }
+        }
+    }
+
     private static void setContext(CapzThread thread, AbstractContext context) {
         thread.setContext(context);
         if (!DISABLE_TCCL) {
@@ -131,7 +150,7 @@ public abstract class AbstractContext implements ContextInternal {
 
     public static boolean isOnCapzThread() {
         Thread t = Thread.currentThread();
-        return (t instanceof CapzThread);
+        return (t instanceof CapzThread) || VirtualThreads.isCapzVirtualThread();
     }
 
     private static boolean isOnCapzThread(boolean worker) {
@@ -140,7 +159,8 @@ public abstract class AbstractContext implements ContextInternal {
             CapzThread vt = (CapzThread) t;
             return vt.isWorker() == worker;
         }
-        return false;
+        // 虚拟线程只用于worker
+        return worker && VirtualThreads.isCapzVirtualThread();
     }
 
     // This is called to execute code where the origin is IO (from Netty probably).
@@ -214,9 +234,11 @@ public abstract class AbstractContext implements ContextInternal {
                              Executor exec, TaskQueue queue) {
         try {
             Runnable command = () -> {
-                CapzThread current = (CapzThread) Thread.currentThread();
+                Thread th = Thread.currentThread();
+                // 虚拟线程上不计时，不受BlockedThreadChecker检查
+                CapzThread current = th instanceof CapzThread ? (CapzThread) th : null;
 
-                if (!DISABLE_TIMINGS) {
+                if (!DISABLE_TIMINGS && current != null) {
                     current.executeStart();
                 }
                 Future<T> res = Future.future();
@@ -231,7 +253,7 @@ public abstract class AbstractContext implements ContextInternal {
                 } catch (Throwable e) {
                     res.fail(e);
                 } finally {
-                    if (!DISABLE_TIMINGS) {
+                    if (!DISABLE_TIMINGS && current != null) {
                         current.executeEnd();
                     }
                 }
@@ -264,6 +286,10 @@ public abstract class AbstractContext implements ContextInternal {
         return () -> {
             Thread th = Thread.currentThread();
             if (!(th instanceof CapzThread)) {
+                if (!isEventLoopContext() && VirtualThreads.isCapzVirtualThread()) {
+                    runOnVirtualThread(cTask, hTask);
+                    return;
+                }
                 throw new IllegalStateException(
                         "Uh oh! Event loop context executing with wrong thread! Expected "
                                 + contextThread + " got " + th);
@@ -282,6 +308,12 @@ public abstract class AbstractContext implements ContextInternal {
             if (!DISABLE_TIMINGS) {
                 current.executeStart();
             }
+            // 嵌套执行时（例如在任务中调用executeFromIO）由最外层的任务负责执行endOfTaskHandlers
+            boolean outerTask = isEventLoopContext() && !executingTask;
+            if (outerTask) {
+                executingTask = true;
+                endOfTaskCount = 0;
+            }
             try {
                 setContext(current, AbstractContext.this);
                 if (cTask != null) {
@@ -291,16 +323,12 @@ public abstract class AbstractContext implements ContextInternal {
                 }
 
             } catch (Throwable t) {
-                log.error("Unhandled exception", t);
-                Handler<Throwable> handler = this.exceptionHandler;
-                if (handler == null) {
-                    handler = owner.exceptionHandler();
-                }
-                if (handler != null) {
-                    handler.handle(t);
-                }
-
+                handleTaskException(t);
             } finally {
+                if (outerTask) {
+                    runEndOfTaskHandlers();
+                    executingTask = false;
+                }
                 // We don't unset the context after execution - this is done later when the context is closed via
                 // CapzThreadFactory
                 if (!DISABLE_TIMINGS) {
@@ -310,6 +338,65 @@ public abstract class AbstractContext implements ContextInternal {
         };
     }
 
+    // worker context的任务在虚拟线程上执行，没有CapzThread的计时和线程检查
+    private void runOnVirtualThread(ContextTask cTask, Handler<Void> hTask) {
+        try {
+            setVirtualThreadContext(this);
+            if (cTask != null) {
+                cTask.run();
+            } else {
+                hTask.handle(null);
+            }
+        } catch (Throwable t) {
+            handleTaskException(t);
+        }
+    }
+
+    /**
+     * 如果当前线程正在执行本context的任务，把handler放到当前任务结束时执行，省去一次提交到event loop的开销。
+     * handler不会在调用者的调用栈中执行，因此不会出现重入；按加入的顺序执行。
+     *
+     * @param maxTasks 一个任务中最多能加入的handler个数，用于限制级联投递的深度
+     * @return 不满足条件时返回false，调用者需要自己通过runOnContext执行
+     */
+    public boolean runAtEndOfTask(Handler<Void> handler, int maxTasks) {
+        if (!isEventLoopContext() || !nettyEventLoop().inEventLoop() || CapzImpl.context() != this
+                || !executingTask || endOfTaskCount >= maxTasks) {
+            return false;
+        }
+        endOfTaskCount++;
+        if (endOfTaskHandlers == null) {
+            endOfTaskHandlers = new ArrayDeque<>();
+        }
+        endOfTaskHandlers.add(handler);
+        return true;
+    }
+
+    private void runEndOfTaskHandlers() {
+        if (endOfTaskHandlers == null) {
+            return;
+        }
+        Handler<Void> handler;
+        while ((handler = endOfTaskHandlers.poll()) != null) {
+            try {
+                handler.handle(null);
+            } catch (Throwable t) {
+                handleTaskException(t);
+            }
+        }
+    }
+
+    private void handleTaskException(Throwable t) {
+        log.error("Unhandled exception", t);
+        Handler<Throwable> handler = this.exceptionHandler;
+        if (handler == null) {
+            handler = owner.exceptionHandler();
+        }
+        if (handler != null) {
+            handler.handle(t);
+        }
+    }
+
     private void setTCCL() {
         Thread.currentThread().setContextClassLoader(tccl);
     }
@@ -1,8 +1,10 @@
 package com.capz.core.impl;
 
+import com.capz.core.AsyncResult;
 import com.capz.core.Capz;
 import com.capz.core.CapzOptions;
 import com.capz.core.Context;
+import com.capz.core.Handler;
 
 public class CapzFactory {
 
@@ -14,6 +16,11 @@ public class CapzFactory {
         return new CapzImpl(options);
     }
 
+    public void clusteredCapz(CapzOptions options, Handler<AsyncResult<Capz>> resultHandler) {
+        options.getEventBusOptions().setClustered(true);
+        new CapzImpl(options, resultHandler);
+    }
+
     public Context context() {
         return CapzImpl.context();
     }
@@ -3,27 +3,25 @@ package com.capz.core.impl;
 import com.capz.core.*;
 import com.capz.core.eventbus.EventBus;
 import com.capz.core.eventbus.impl.EventBusImpl;
+import com.capz.core.eventbus.impl.clustered.ClusteredEventBus;
 import com.capz.core.http.HttpServer;
 import com.capz.core.http.HttpServerOptions;
 import com.capz.core.http.impl.HttpServerImpl;
 import com.capz.core.net.impl.ServerID;
-import io.netty.channel.EventLoop;
+import com.capz.core.net.impl.transport.Transport;
+import com.capz.core.spi.cluster.NodeRegistry;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.ResourceLeakDetector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Bao Qingping
@@ -42,20 +40,24 @@ public class CapzImpl implements CapzInternal {
         System.setProperty("io.netty.noJdkZlibDecoder", "false");
     }
 
-    private final ConcurrentMap<Long, InternalTimerHandler> timeouts = new ConcurrentHashMap<>();
-    private final AtomicLong timeoutCounter = new AtomicLong(0);
     final WorkerExecutor workerPool;
     final WorkerExecutor internalBlockingPool;
     private final ThreadFactory eventLoopThreadFactory;
-    private final NioEventLoopGroup eventLoopGroup;
-    private final NioEventLoopGroup acceptorEventLoopGroup;
+    private final Transport transport;
+    private final EventLoopGroup eventLoopGroup;
+    private final EventLoopGroup acceptorEventLoopGroup;
+    private final TimerService timerService;
     private final BlockedThreadChecker checker;
     private EventBus eventBus;
     private boolean closed;
     private volatile Handler<Throwable> exceptionHandler;
     private final Map<String, SharedWorkerPool> namedWorkerPools;
+    // 还没有关闭的每个部署的虚拟线程executor
+    private final Set<WorkerExecutorImpl> virtualThreadExecutors = ConcurrentHashMap.newKeySet();
     private final int defaultWorkerPoolSize;
     private final long defaultWorkerMaxExecTime;
+    // 关闭stickyEmbeddedContext时为null
+    private final EmbeddedContextCache embeddedContexts;
 
     private DeploymentManager deploymentManager;
 
@@ -78,12 +80,12 @@ public class CapzImpl implements CapzInternal {
         //closeHooks = new CloseHooks(log);
         checker = new BlockedThreadChecker(options.getBlockedThreadCheckInterval(), options.getWarningExceptionTime());
         eventLoopThreadFactory = new CapzThreadFactory("capz-eventloop-thread-", checker, false, options.getMaxEventLoopExecuteTime());
-        eventLoopGroup = new NioEventLoopGroup(options.getEventLoopPoolSize(), eventLoopThreadFactory);
-        eventLoopGroup.setIoRatio(NETTY_IO_RATIO);
+        transport = Transport.transport(options.isPreferNativeTransport());
+        eventLoopGroup = transport.eventLoopGroup(options.getEventLoopPoolSize(), eventLoopThreadFactory, NETTY_IO_RATIO);
         ThreadFactory acceptorEventLoopThreadFactory = new CapzThreadFactory("capz-acceptor-thread-", checker, false, options.getMaxEventLoopExecuteTime());
 
-        acceptorEventLoopGroup = new NioEventLoopGroup(1, acceptorEventLoopThreadFactory);
-        acceptorEventLoopGroup.setIoRatio(100);
+        acceptorEventLoopGroup = transport.eventLoopGroup(1, acceptorEventLoopThreadFactory, 100);
+        timerService = new TimerService(eventLoopGroup, options.getTimerTick(), options.getTimerWheelSize());
 
         ExecutorService workerExec = Executors.newFixedThreadPool(options.getWorkerPoolSize(),
                 new CapzThreadFactory("capz-worker-thread-", checker, true, options.getMaxWorkerExecuteTime()));
@@ -94,6 +96,7 @@ public class CapzImpl implements CapzInternal {
         workerPool = new WorkerExecutorImpl(this, workerExec, true);
         defaultWorkerPoolSize = options.getWorkerPoolSize();
         defaultWorkerMaxExecTime = options.getMaxWorkerExecuteTime();
+        embeddedContexts = options.isStickyEmbeddedContext() ? new EmbeddedContextCache(options.getMaxEmbeddedContexts()) : null;
 
         deploymentManager = new DeploymentManager(this);
 
@@ -103,7 +106,24 @@ public class CapzImpl implements CapzInternal {
     }
 
     private void createAndStartEventBus(CapzOptions options, Handler<AsyncResult<Capz>> resultHandler) {
-        eventBus = new EventBusImpl(this);
+        if (options.getEventBusOptions().isClustered()) {
+            NodeRegistry nodeRegistry = options.getNodeRegistry();
+            if (nodeRegistry == null) {
+                nodeRegistry = ServiceHelper.loadFactoryOrNull(NodeRegistry.class);
+            }
+            if (nodeRegistry == null) {
+                // 不能默认使用进程内的注册表，否则不同进程的节点互相看不到订阅，消息只会在本地投递
+                IllegalStateException cause = new IllegalStateException("Clustered mode requires a NodeRegistry: "
+                        + "set one with CapzOptions.setNodeRegistry or provide it through ServiceLoader "
+                        + "(LocalNodeRegistry for nodes in a single JVM)");
+                log.error("Failed to start event bus", cause);
+                if (resultHandler != null) resultHandler.handle(Future.failedFuture(cause));
+                return;
+            }
+            eventBus = new ClusteredEventBus(this, options, nodeRegistry);
+        } else {
+            eventBus = new EventBusImpl(this, options.getEventBusOptions());
+        }
 
         eventBus.start(ar -> {
             if (ar.succeeded()) {
@@ -125,12 +145,12 @@ public class CapzImpl implements CapzInternal {
     }
 
     public long setPeriodic(long delay, Handler<Long> handler) {
-        return scheduleTimeout(getOrCreateContext(), handler, delay, true);
+        return timerService.schedule(getOrCreateContext(), handler, delay, true);
     }
 
 
     public long setTimer(long delay, Handler<Long> handler) {
-        return scheduleTimeout(getOrCreateContext(), handler, delay, false);
+        return timerService.schedule(getOrCreateContext(), handler, delay, false);
     }
 
     public void runOnContext(Handler<Void> task) {
@@ -151,23 +171,35 @@ public class CapzImpl implements CapzInternal {
         return acceptorEventLoopGroup;
     }
 
+    @Override
+    public Transport transport() {
+        return transport;
+    }
+
     public AbstractContext getOrCreateContext() {
         AbstractContext ctx = getContext();
         if (ctx == null) {
             // We are running embedded - Create a context
-            ctx = createEventLoopContext(null, null, Thread.currentThread().getContextClassLoader());
+            ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+            if (embeddedContexts == null) {
+                return createEventLoopContext(null, null, tccl);
+            }
+            ctx = embeddedContexts.get(tccl);
+            if (ctx == null) {
+                ctx = createEventLoopContext(null, null, tccl);
+                embeddedContexts.put(ctx, tccl);
+            }
         }
         return ctx;
     }
 
     public boolean cancelTimer(long id) {
-        InternalTimerHandler handler = timeouts.remove(id);
-        if (handler != null) {
-            //handler.context.removeCloseHook(handler);
-            return handler.cancel();
-        } else {
-            return false;
-        }
+        return timerService.cancel(id);
+    }
+
+    @Override
+    public TimerService timerService() {
+        return timerService;
     }
 
     @Override
@@ -183,21 +215,10 @@ public class CapzImpl implements CapzInternal {
             pool = this.workerPool;
         }
         if (multiThreaded) {
-            return new MultiThreadedWorkerContext(this, internalBlockingPool, workerPool, deploymentID, tccl);
+            return new MultiThreadedWorkerContext(this, internalBlockingPool, pool, deploymentID, tccl);
         } else {
-            return new WorkerContext(this, internalBlockingPool, workerPool, deploymentID, tccl);
-        }
-    }
-
-    private long scheduleTimeout(AbstractContext context, Handler<Long> handler, long delay, boolean periodic) {
-        if (delay < 1) {
-            throw new IllegalArgumentException("Cannot schedule a timer with delay < 1 ms");
+            return new WorkerContext(this, internalBlockingPool, pool, deploymentID, tccl);
         }
-        long timerId = timeoutCounter.getAndIncrement();
-        InternalTimerHandler task = new InternalTimerHandler(timerId, handler, periodic, delay, context);
-        timeouts.put(timerId, task);
-        //context.addCloseHook(task);
-        return timerId;
     }
 
     public static Context context() {
@@ -205,7 +226,7 @@ public class CapzImpl implements CapzInternal {
         if (current instanceof CapzThread) {
             return ((CapzThread) current).getContext();
         }
-        return null;
+        return VirtualThreads.context();
     }
 
     @Override
@@ -234,7 +255,9 @@ public class CapzImpl implements CapzInternal {
             return;
         }
         closed = true;
-
+        for (WorkerExecutorImpl workerExecutor : virtualThreadExecutors) {
+            workerExecutor.close(null);
+        }
 
     }
 
@@ -264,72 +287,6 @@ public class CapzImpl implements CapzInternal {
     }
 
 
-    private class InternalTimerHandler implements Handler<Void>, Closeable {
-        final Handler<Long> handler;
-        final boolean periodic;
-        final long timerID;
-        final AbstractContext context;
-        final java.util.concurrent.Future<?> future;
-        final AtomicBoolean cancelled;
-
-        boolean cancel() {
-            if (cancelled.compareAndSet(false, true)) {
-                future.cancel(false);
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        InternalTimerHandler(long timerID, Handler<Long> runnable, boolean periodic,
-                             long delay, AbstractContext context) {
-            this.context = context;
-            this.timerID = timerID;
-            this.handler = runnable;
-            this.periodic = periodic;
-            this.cancelled = new AtomicBoolean();
-            EventLoop el = context.nettyEventLoop();
-            Runnable toRun = () -> context.runOnContext(this);
-            if (periodic) {
-                // 最终会定时调用handle(Void v)方法
-                future = el.scheduleAtFixedRate(toRun, delay, delay, TimeUnit.MILLISECONDS);
-            } else {
-                future = el.schedule(toRun, delay, TimeUnit.MILLISECONDS);
-            }
-
-        }
-
-        public void handle(Void v) {
-            if (!cancelled.get()) {
-                try {
-                    handler.handle(timerID);
-                } finally {
-                    if (!periodic) {
-                        // Clean up after it's fired
-                        cleanupNonPeriodic();
-                    }
-                }
-            }
-        }
-
-        private void cleanupNonPeriodic() {
-            CapzImpl.this.timeouts.remove(timerID);
-
-            AbstractContext context = getContext();
-            if (context != null) {
-                //context.removeCloseHook(this);
-            }
-        }
-
-        // Called via Context close hook when Verticle is undeployed
-        public void close(Handler<AsyncResult<Void>> completionHandler) {
-            CapzImpl.this.timeouts.remove(timerID);
-            cancel();
-            completionHandler.handle(Future.succeededFuture());
-        }
-
-    }
-
     public Capz exceptionHandler(Handler<Throwable> handler) {
         exceptionHandler = handler;
         return this;
@@ -351,6 +308,24 @@ public class CapzImpl implements CapzInternal {
         return createSharedWorkerExecutor(name, poolSize, defaultWorkerMaxExecTime);
     }
 
+    @Override
+    public WorkerExecutorImpl createVirtualThreadWorkerExecutor(String name) {
+        ExecutorService executor = VirtualThreads.newExecutor(name + "-");
+        if (executor == null) {
+            return null;
+        }
+        // 由DeploymentManager在undeploy时关闭，Capz关闭时关闭剩下的
+        WorkerExecutorImpl workerExecutor = new WorkerExecutorImpl(this, executor, true) {
+            @Override
+            public void close(Handler<AsyncResult<Void>> completionHandler) {
+                virtualThreadExecutors.remove(this);
+                super.close(completionHandler);
+            }
+        };
+        virtualThreadExecutors.add(workerExecutor);
+        return workerExecutor;
+    }
+
     // TODO 返回值
     @Override
     public synchronized WorkerExecutorImpl createSharedWorkerExecutor(String name, int poolSize, long maxExecuteTime) {
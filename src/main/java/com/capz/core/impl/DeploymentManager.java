@@ -433,11 +433,18 @@ public class DeploymentManager {
 
         AtomicInteger deployCount = new AtomicInteger();
         AtomicBoolean failureReported = new AtomicBoolean();
+        boolean virtualThreads = options.isVirtualThreads();
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            log.warn("Virtual threads are not supported by this JVM, deploying " + identifier + " as a worker");
+        }
         for (Capsule Capsule : Capsules) {
-            WorkerExecutor workerExec = poolName != null ?
-                    capz.createSharedWorkerExecutor(poolName, options.getWorkerPoolSize(), options.getMaxWorkerExecuteTime()) : null;
+            WorkerExecutor virtualExec = virtualThreads ? capz.createVirtualThreadWorkerExecutor("capz-virtual-" + deploymentID) : null;
+            WorkerExecutor workerExec = virtualExec;
+            if (workerExec == null && poolName != null) {
+                workerExec = capz.createSharedWorkerExecutor(poolName, options.getWorkerPoolSize(), options.getMaxWorkerExecuteTime());
+            }
 
-            AbstractContext context = options.isWorker() ?
+            AbstractContext context = options.isWorker() || virtualThreads ?
                     capz.createWorkerContext(options.isMultiThreaded(), deploymentID, workerExec, tccl) :
                     capz.createEventLoopContext(deploymentID, workerExec, tccl);
 
@@ -445,7 +452,9 @@ public class DeploymentManager {
                // context.addCloseHook(workerExec);
             }
             context.setDeployment(deployment);
-            deployment.addCapsule(new CapsuleHolder(Capsule, context));
+            CapsuleHolder holder = new CapsuleHolder(Capsule, context);
+            holder.virtualThreadExecutor = virtualExec;
+            deployment.addCapsule(holder);
             context.runOnContext(v -> {
                 try {
                     Capsule.init(capz, context);
@@ -482,6 +491,8 @@ public class DeploymentManager {
     static class CapsuleHolder {
         final Capsule capsule;
         final AbstractContext context;
+        // 这个capsule自己的虚拟线程executor，undeploy时关闭；没有时为null
+        WorkerExecutor virtualThreadExecutor;
 
         CapsuleHolder(Capsule capsule, AbstractContext context) {
             this.capsule = capsule;
@@ -521,6 +532,12 @@ public class DeploymentManager {
                     synchronized (DeploymentImpl.this) {
                         status = ST_UNDEPLOYED;
                     }
+                    // 部署失败的capsule不会再执行，关闭它们的虚拟线程executor
+                    for (CapsuleHolder holder : Capsules) {
+                        if (holder.virtualThreadExecutor != null) {
+                            holder.virtualThreadExecutor.close(null);
+                        }
+                    }
                     if (childrenResult.failed()) {
                         reportFailure(cause, callingContext, completionHandler);
                     } else {
@@ -589,6 +606,9 @@ public class DeploymentManager {
                         AtomicBoolean failureReported = new AtomicBoolean();
                         stopFuture.setHandler(ar -> {
                             deployments.remove(deploymentID);
+                            if (CapsuleHolder.virtualThreadExecutor != null) {
+                                CapsuleHolder.virtualThreadExecutor.close(null);
+                            }
                         });
                         try {
                             CapsuleHolder.capsule.stop(stopFuture);
@@ -0,0 +1,70 @@
+package com.capz.core.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 非Capz线程（嵌入式使用）上getOrCreateContext创建的context的缓存，每个线程一个，
+ * 同一个线程多次调用runOnContext、setTimer等方法时使用同一个context和同一个event loop。
+ * <p>
+ * context由线程的ThreadLocal强引用，在线程的整个生命周期内保持不变，线程结束后才释放，
+ * 因此长期存活的外部线程会一直持有context以及它所属的Capz实例。
+ * 缓存的线程个数有上限，超过上限时新的线程不再缓存，每次调用创建新的context；已经结束的线程不计入上限。
+ */
+class EmbeddedContextCache {
+
+    private final ThreadLocal<Entry> contexts = new ThreadLocal<>();
+    // 缓存了context的线程，只用于计数，弱引用不影响线程对象的回收
+    private final Set<WeakReference<Thread>> threads = ConcurrentHashMap.newKeySet();
+    private final int maxSize;
+
+    EmbeddedContextCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 当前线程缓存的context，没有缓存或者创建时的TCCL与现在的不同时返回null
+     */
+    AbstractContext get(ClassLoader tccl) {
+        Entry entry = contexts.get();
+        if (entry == null || entry.tccl != tccl) {
+            return null;
+        }
+        return entry.context;
+    }
+
+    void put(AbstractContext context, ClassLoader tccl) {
+        if (contexts.get() == null) {
+            expunge();
+            if (threads.size() >= maxSize) {
+                return;
+            }
+            threads.add(new WeakReference<>(Thread.currentThread()));
+        }
+        // TCCL变化时替换，原来的context不再缓存
+        contexts.set(new Entry(context, tccl));
+    }
+
+    // 移除已经结束的线程
+    private void expunge() {
+        for (Iterator<WeakReference<Thread>> it = threads.iterator(); it.hasNext(); ) {
+            Thread thread = it.next().get();
+            if (thread == null || !thread.isAlive()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final AbstractContext context;
+        private final ClassLoader tccl;
+
+        Entry(AbstractContext context, ClassLoader tccl) {
+            this.context = context;
+            this.tccl = tccl;
+        }
+    }
+}
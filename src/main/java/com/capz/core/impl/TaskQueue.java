@@ -3,17 +3,41 @@ package com.capz.core.impl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedList;
 import java.util.concurrent.Executor;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 按提交顺序执行任务的队列，每个任务可以指定不同的executor，切换executor时仍然保证先进先出。
+ * <p>
+ * 队列是无锁的多生产者单消费者链表，任务本身就是链表节点（intrusive），入队只需一次getAndSet。
+ * 同一时刻最多只有一个runner在某个executor上消费队列：wip记录已提交但还没有被消费的任务数，
+ * 只有让wip从0变为1的提交者才提交runner，队列中还有任务时不会重复提交。
+ * runner在一个executor上最多连续执行batchSize个任务，之后重新提交自己，避免长时间占用线程池的线程。
+ */
 public class TaskQueue {
 
     static final Logger log = LoggerFactory.getLogger(TaskQueue.class);
 
+    private static final String BATCH_SIZE_PROP_NAME = "capz.taskQueueBatchSize";
+
+    public static final int DEFAULT_BATCH_SIZE = defaultBatchSize();
+
+    // 系统属性的值小于1时使用默认值
+    private static int defaultBatchSize() {
+        int batchSize = Integer.getInteger(BATCH_SIZE_PROP_NAME, 64);
+        if (batchSize < 1) {
+            log.warn("Invalid " + BATCH_SIZE_PROP_NAME + ": " + batchSize + ", using 64");
+            return 64;
+        }
+        return batchSize;
+    }
+
     private static class Task {
 
-        private final Runnable runnable;
+        private Runnable runnable;
         private final Executor exec;
+        private volatile Task next;
 
         public Task(Runnable runnable, Executor exec) {
             this.runnable = runnable;
@@ -21,37 +45,62 @@ public class TaskQueue {
         }
     }
 
+    private final int batchSize;
+
+    private final AtomicReference<Task> tail;
 
-    private final LinkedList<Task> tasks = new LinkedList<>();
+    private final AtomicInteger wip = new AtomicInteger();
 
+    // 以下字段只由当前的runner访问，runner的交接通过wip和executor的提交保证可见性
+    // head是已经消费过的节点（初始为空节点），head.next是下一个任务
+    private Task head;
 
     private Executor current;
 
     private final Runnable runner;
 
     public TaskQueue() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    public TaskQueue(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be >= 1");
+        }
+        this.batchSize = batchSize;
+        this.head = new Task(null, null);
+        this.tail = new AtomicReference<>(head);
         runner = this::run; // 方法引用可看做一个lambda表达式
     }
 
     private void run() {
-        for (; ; ) {
-            final Task task;
-            synchronized (tasks) {
-                task = tasks.poll();
-                if (task == null) {
-                    current = null;
-                    return;
-                }
-                // 下面的execute方法中可能是不同的executor
-                if (task.exec != current) {
-                    tasks.addFirst(task);
-                    task.exec.execute(runner);
-                    current = task.exec;
+        int consumed = 0;
+        for (int executed = 0; ; ) {
+            Task task = head.next;
+            if (task == null) {
+                if (wip.addAndGet(-consumed) == 0) {
+                    // 队列已空，下一个提交者会重新提交runner，这之后不能再访问head和current
                     return;
                 }
+                // 提交者已经增加了wip但还没有链接节点，等待链接完成
+                consumed = 0;
+                continue;
+            }
+            // 下一个任务要在不同的executor上执行，或者这一批已经执行完，交给下一个runner继续
+            // 队列中还有任务，wip不会变为0，其他线程不会同时提交runner
+            if (task.exec != current || executed == batchSize) {
+                wip.addAndGet(-consumed);
+                current = task.exec;
+                task.exec.execute(runner);
+                return;
             }
+            Runnable runnable = task.runnable;
+            task.runnable = null;
+            head = task;
+            consumed++;
+            executed++;
             try {
-                task.runnable.run();
+                runnable.run();
             } catch (Throwable t) {
                 log.error("Caught unexpected Throwable", t);
             }
@@ -60,12 +109,14 @@ public class TaskQueue {
 
 
     public void execute(Runnable task, Executor executor) {
-        synchronized (tasks) {
-            tasks.add(new Task(task, executor));
-            if (current == null) {
-                current = executor;
-                executor.execute(runner); // execute会在线程池的某个线程上调用上面的run()方法
-            }
+        Task node = new Task(task, executor);
+        boolean start = wip.getAndIncrement() == 0;
+        Task prev = tail.getAndSet(node);
+        prev.next = node;
+        if (start) {
+            // 没有正在运行的runner，这个任务就是队首
+            current = executor;
+            executor.execute(runner); // execute会在线程池的某个线程上调用上面的run()方法
         }
     }
-}
\ No newline at end of file
+}
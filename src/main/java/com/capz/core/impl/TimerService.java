@@ -0,0 +1,165 @@
+package com.capz.core.impl;
+
+import com.capz.core.Handler;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * setTimer/setPeriodic/cancelTimer的实现。
+ * <p>
+ * 每个event loop一个时间轮（见{@link TimerWheel}）和一张以定时器ID为key的表。
+ * 定时器ID的低位是event loop的序号，取消定时器时直接定位到对应的表，不需要全局的map。
+ * 表由所属event loop的锁保护，几乎只被该event loop线程访问；时间轮只在event loop线程上操作，
+ * 其他线程的添加和取消会提交到event loop上执行。
+ */
+public class TimerService {
+
+    private final LoopTimers[] loops;
+    private final Map<EventLoop, LoopTimers> loopTimers = new IdentityHashMap<>();
+    private final int indexBits;
+    private final long indexMask;
+
+    public TimerService(EventLoopGroup eventLoopGroup, long tickMillis, int wheelSize) {
+        List<EventLoop> eventLoops = new ArrayList<>();
+        for (EventExecutor executor : eventLoopGroup) {
+            eventLoops.add((EventLoop) executor);
+        }
+        int bits = 0;
+        while ((1 << bits) < eventLoops.size()) {
+            bits++;
+        }
+        this.indexBits = bits;
+        this.indexMask = (1L << bits) - 1;
+        this.loops = new LoopTimers[eventLoops.size()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new LoopTimers(i, new TimerWheel(eventLoops.get(i), tickMillis, wheelSize));
+            loopTimers.put(eventLoops.get(i), loops[i]);
+        }
+    }
+
+    // event loop上的时间轮，供需要在event loop上自己管理超时的组件使用
+    public TimerWheel wheel(EventLoop eventLoop) {
+        return loopTimers.get(eventLoop).wheel;
+    }
+
+    public long schedule(AbstractContext context, Handler<Long> handler, long delay, boolean periodic) {
+        if (delay < 1) {
+            throw new IllegalArgumentException("Cannot schedule a timer with delay < 1 ms");
+        }
+        LoopTimers loop = loopTimers.get(context.nettyEventLoop());
+        long timerID = (loop.sequence.incrementAndGet() << indexBits) | loop.index;
+        InternalTimer timer = new InternalTimer(timerID, loop, handler, periodic, delay, context);
+        synchronized (loop) {
+            loop.timers.put(timerID, timer);
+        }
+        EventLoop eventLoop = loop.wheel.eventLoop();
+        if (eventLoop.inEventLoop()) {
+            loop.wheel.schedule(timer, delay);
+        } else {
+            eventLoop.execute(() -> {
+                if (!timer.cancelled) {
+                    loop.wheel.schedule(timer, delay);
+                }
+            });
+        }
+        return timerID;
+    }
+
+    public boolean cancel(long timerID) {
+        int index = (int) (timerID & indexMask);
+        if (timerID < 0 || index >= loops.length) {
+            return false;
+        }
+        LoopTimers loop = loops[index];
+        InternalTimer timer;
+        synchronized (loop) {
+            timer = loop.timers.remove(timerID);
+            if (timer == null) {
+                return false;
+            }
+            timer.cancelled = true;
+        }
+        EventLoop eventLoop = loop.wheel.eventLoop();
+        if (eventLoop.inEventLoop()) {
+            loop.wheel.cancel(timer);
+        } else {
+            eventLoop.execute(() -> loop.wheel.cancel(timer));
+        }
+        return true;
+    }
+
+    private static class LoopTimers {
+
+        final int index;
+        final TimerWheel wheel;
+        final AtomicLong sequence = new AtomicLong();
+        // 受this保护
+        final LongObjectHashMap<InternalTimer> timers = new LongObjectHashMap<>();
+
+        LoopTimers(int index, TimerWheel wheel) {
+            this.index = index;
+            this.wheel = wheel;
+        }
+    }
+
+    private static class InternalTimer extends TimerWheel.Timeout implements Handler<Void> {
+
+        final long timerID;
+        final LoopTimers loop;
+        final Handler<Long> handler;
+        final boolean periodic;
+        final long delay;
+        final AbstractContext context;
+        volatile boolean cancelled;
+
+        InternalTimer(long timerID, LoopTimers loop, Handler<Long> handler, boolean periodic, long delay,
+                      AbstractContext context) {
+            this.timerID = timerID;
+            this.loop = loop;
+            this.handler = handler;
+            this.periodic = periodic;
+            this.delay = delay;
+            this.context = context;
+        }
+
+        @Override
+        protected void expire() {
+            if (cancelled) {
+                return;
+            }
+            if (periodic) {
+                loop.wheel.scheduleNext(this, delay);
+            }
+            // 时间轮的tick是event loop上独立的任务，event loop context可以直接执行
+            if (context.isEventLoopContext() && context.nettyEventLoop() == loop.wheel.eventLoop()) {
+                context.executeFromIO(() -> handle(null));
+            } else {
+                context.runOnContext(this);
+            }
+        }
+
+        @Override
+        public void handle(Void v) {
+            if (!cancelled) {
+                try {
+                    handler.handle(timerID);
+                } finally {
+                    if (!periodic) {
+                        // Clean up after it's fired
+                        synchronized (loop) {
+                            loop.timers.remove(timerID);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.capz.core.impl;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程的哈希时间轮，由所属的event loop驱动，所有方法都必须在该event loop线程上调用。
+ * <p>
+ * 每个槽是一个侵入式双向链表，添加和取消都是O(1)。event loop只在下一个非空的槽到期时才被唤醒，
+ * 轮中没有任务时不会唤醒；同一个tick内到期的任务在一次唤醒中全部执行。
+ */
+public class TimerWheel {
+
+    private static final int NOT_SCHEDULED = -1;
+    private static final int EXPIRING = -2;
+
+    public abstract static class Timeout {
+
+        private long deadlineTick;
+        private int bucket = NOT_SCHEDULED;
+        private Timeout prev;
+        private Timeout next;
+
+        // 到期时在event loop线程上调用
+        protected abstract void expire();
+
+        public boolean isScheduled() {
+            return bucket != NOT_SCHEDULED;
+        }
+    }
+
+    private final EventLoop eventLoop;
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final Runnable tickTask = this::tick;
+    private long currentTick;
+    private int size;
+    private long wakeupTick = Long.MAX_VALUE;
+    private ScheduledFuture<?> wakeupFuture;
+
+    public TimerWheel(EventLoop eventLoop, long tickMillis, int wheelSize) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be > 0");
+        }
+        if (wheelSize < 1 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of 2");
+        }
+        this.eventLoop = eventLoop;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    public EventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void schedule(Timeout timeout, long delayMillis) {
+        if (timeout.bucket != NOT_SCHEDULED) {
+            throw new IllegalStateException("Timeout already scheduled");
+        }
+        long elapsed = System.nanoTime() - startTime;
+        if (size == 0) {
+            // 轮中没有任务，直接跳到当前tick
+            currentTick = Math.max(currentTick, elapsed / tickNanos);
+        }
+        long deadline = elapsed + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        insert(timeout, (deadline + tickNanos - 1) / tickNanos);
+    }
+
+    /**
+     * 在上一次到期的基础上再延迟periodMillis，用于周期性的任务，不会因为tick的取整而产生累积误差。
+     * 只能在timeout的expire中调用。
+     */
+    public void scheduleNext(Timeout timeout, long periodMillis) {
+        if (timeout.bucket != NOT_SCHEDULED) {
+            throw new IllegalStateException("Timeout already scheduled");
+        }
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+        insert(timeout, timeout.deadlineTick + (periodNanos + tickNanos - 1) / tickNanos);
+    }
+
+    private void insert(Timeout timeout, long deadlineTick) {
+        deadlineTick = Math.max(deadlineTick, currentTick + 1);
+        timeout.deadlineTick = deadlineTick;
+        int idx = (int) (deadlineTick & mask);
+        Timeout head = wheel[idx];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        wheel[idx] = timeout;
+        timeout.bucket = idx;
+        size++;
+        if (deadlineTick < wakeupTick) {
+            scheduleWakeup(deadlineTick);
+        }
+    }
+
+    public boolean cancel(Timeout timeout) {
+        int idx = timeout.bucket;
+        if (idx == NOT_SCHEDULED) {
+            return false;
+        }
+        timeout.bucket = NOT_SCHEDULED;
+        if (idx != EXPIRING) {
+            unlink(timeout, idx);
+        }
+        return true;
+    }
+
+    private void unlink(Timeout timeout, int idx) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[idx] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+    }
+
+    private void scheduleWakeup(long tick) {
+        if (wakeupFuture != null) {
+            wakeupFuture.cancel(false);
+        }
+        wakeupTick = tick;
+        long delay = Math.max(0, startTime + tick * tickNanos - System.nanoTime());
+        wakeupFuture = eventLoop.schedule(tickTask, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void tick() {
+        wakeupFuture = null;
+        wakeupTick = Long.MAX_VALUE;
+        long nowTick = (System.nanoTime() - startTime) / tickNanos;
+        while (currentTick < nowTick && size > 0) {
+            currentTick++;
+            expireTimeouts(currentTick);
+        }
+        if (size == 0) {
+            currentTick = Math.max(currentTick, nowTick);
+        } else {
+            // 到期任务中新加的任务可能已经安排了更晚的唤醒
+            long next = nextNonEmptyTick();
+            if (next < wakeupTick) {
+                scheduleWakeup(next);
+            }
+        }
+    }
+
+    // 下一个非空槽对应的tick，槽中的任务可能属于之后的轮次，此时只是多唤醒一次
+    private long nextNonEmptyTick() {
+        for (long tick = currentTick + 1; tick <= currentTick + wheel.length; tick++) {
+            if (wheel[(int) (tick & mask)] != null) {
+                return tick;
+            }
+        }
+        return currentTick + wheel.length;
+    }
+
+    private void expireTimeouts(long tick) {
+        int idx = (int) (tick & mask);
+        // 先把到期的任务摘下来串成一个链表，再逐个执行，执行过程中可以安全地添加或取消任务
+        Timeout expired = null;
+        Timeout timeout = wheel[idx];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= tick) {
+                unlink(timeout, idx);
+                timeout.bucket = EXPIRING;
+                timeout.next = expired;
+                expired = timeout;
+            }
+            timeout = next;
+        }
+        while (expired != null) {
+            Timeout next = expired.next;
+            expired.next = null;
+            if (expired.bucket == EXPIRING) {
+                expired.bucket = NOT_SCHEDULED;
+                expired.expire();
+            }
+            expired = next;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.capz.core.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 虚拟线程的支持，项目按Java 8编译，JDK的虚拟线程API都通过反射访问，运行在不支持的JDK上时isSupported()返回false。
+ * <p>
+ * 虚拟线程不能是CapzThread，Capz创建的虚拟线程在开始运行时设置一个ThreadLocal标记，
+ * 只有带标记的线程才被当作Capz的线程，应用自己的虚拟线程不受影响；在这些线程上执行的任务通过ThreadLocal保存当前的context。
+ * 虚拟线程不注册到BlockedThreadChecker，阻塞是预期的行为。
+ */
+public final class VirtualThreads {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+    // Capz创建的虚拟线程的标记
+    private static final ThreadLocal<Boolean> CAPZ_THREAD = new ThreadLocal<>();
+    private static final ThreadLocal<AbstractContext> CONTEXT = new ThreadLocal<>();
+
+    // Thread.ofVirtual()返回的builder，不支持时为null
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    // Executors.newThreadPerTaskExecutor(ThreadFactory)
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+            newThreadPerTaskExecutor = java.util.concurrent.Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // 预览版本的JDK上方法存在但调用会失败，这里先试一次
+            ofVirtual.invoke(null);
+        } catch (Throwable t) {
+            log.debug("Virtual threads not supported: " + t);
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 当前线程是否是Capz创建的虚拟线程
+     */
+    public static boolean isCapzVirtualThread() {
+        return OF_VIRTUAL != null && CAPZ_THREAD.get() != null;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的executor，线程名为prefix加序号；不支持虚拟线程时返回null
+     */
+    public static ExecutorService newExecutor(String prefix) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+            ThreadFactory virtualFactory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            ThreadFactory factory = runnable -> virtualFactory.newThread(() -> {
+                CAPZ_THREAD.set(Boolean.TRUE);
+                runnable.run();
+            });
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+        } catch (Exception e) {
+            log.warn("Failed to create a virtual thread executor", e);
+            return null;
+        }
+    }
+
+    static AbstractContext context() {
+        return isCapzVirtualThread() ? CONTEXT.get() : null;
+    }
+
+    static void setContext(AbstractContext context) {
+        CONTEXT.set(context);
+    }
+}
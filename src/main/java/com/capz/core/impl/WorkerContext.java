@@ -4,7 +4,6 @@ import com.capz.core.CapzInternal;
 import com.capz.core.ContextTask;
 import com.capz.core.Handler;
 import com.capz.core.WorkerExecutor;
-import com.sun.xml.internal.ws.api.pipe.FiberContextSwitchInterceptor;
 
 import java.util.concurrent.ExecutorService;
 
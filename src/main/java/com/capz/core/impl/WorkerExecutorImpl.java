@@ -46,9 +46,19 @@ public class WorkerExecutorImpl implements WorkerExecutor {
         return capz;
     }
 
-    // TODO
+    // releaseOnClose时关闭线程池，已经提交的任务会执行完
     @Override
     public void close(Handler<AsyncResult<Void>> completionHandler) {
-
+        boolean release;
+        synchronized (this) {
+            release = !closed && releaseOnClose;
+            closed = true;
+        }
+        if (release) {
+            executorService.shutdown();
+        }
+        if (completionHandler != null) {
+            completionHandler.handle(Future.succeededFuture());
+        }
     }
 }
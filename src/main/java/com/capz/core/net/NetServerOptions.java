@@ -19,10 +19,25 @@ public class NetServerOptions {
 
     public static final boolean DEFAULT_SNI = false;
 
+    // 以下选项只在native传输层（epoll）下生效
+
+    public static final boolean DEFAULT_REUSE_PORT = false;
+
+    public static final boolean DEFAULT_TCP_FAST_OPEN = false;
+
+    public static final boolean DEFAULT_TCP_QUICK_ACK = false;
+
+    // 与netty epoll的默认值一致
+    public static final boolean DEFAULT_EDGE_TRIGGERED = true;
+
     private int port;
     private String host;
     private int acceptBacklog;
     private boolean sni;
+    private boolean reusePort;
+    private boolean tcpFastOpen;
+    private boolean tcpQuickAck;
+    private boolean edgeTriggered;
 
     public NetServerOptions() {
         init();
@@ -34,6 +49,10 @@ public class NetServerOptions {
         this.host = other.getHost();
         this.acceptBacklog = other.getAcceptBacklog();
         this.sni = other.isSni();
+        this.reusePort = other.isReusePort();
+        this.tcpFastOpen = other.isTcpFastOpen();
+        this.tcpQuickAck = other.isTcpQuickAck();
+        this.edgeTriggered = other.isEdgeTriggered();
     }
 
 
@@ -42,6 +61,10 @@ public class NetServerOptions {
         this.host = DEFAULT_HOST;
         this.acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
         this.sni = DEFAULT_SNI;
+        this.reusePort = DEFAULT_REUSE_PORT;
+        this.tcpFastOpen = DEFAULT_TCP_FAST_OPEN;
+        this.tcpQuickAck = DEFAULT_TCP_QUICK_ACK;
+        this.edgeTriggered = DEFAULT_EDGE_TRIGGERED;
     }
 
 }
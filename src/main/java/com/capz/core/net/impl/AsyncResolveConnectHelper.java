@@ -4,16 +4,20 @@ import com.capz.core.AsyncResult;
 import com.capz.core.CapzInternal;
 import com.capz.core.Handler;
 import com.capz.core.impl.Future;
+import com.capz.core.net.NetServerOptions;
 import com.capz.core.net.SocketAddress;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ServerChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class AsyncResolveConnectHelper {
@@ -21,6 +25,8 @@ public class AsyncResolveConnectHelper {
     private List<Handler<AsyncResult<Channel>>> handlers = new ArrayList<>();
     private ChannelFuture future;
     private AsyncResult<Channel> result;
+    // 绑定成功的所有server channel，只有一个监听socket时就是result中的channel
+    private List<Channel> channels;
 
     public synchronized void addListener(Handler<AsyncResult<Channel>> handler) {
         if (result != null) {
@@ -46,6 +52,10 @@ public class AsyncResolveConnectHelper {
         }
     }
 
+    public synchronized List<Channel> channels() {
+        return channels;
+    }
+
     private static void checkPort(int port) {
         if (port < 0 || port > 65535) {
             throw new IllegalArgumentException("Invalid port " + port);
@@ -68,8 +78,14 @@ public class AsyncResolveConnectHelper {
 
     public static AsyncResolveConnectHelper doBind(CapzInternal capz, SocketAddress socketAddress,
                                                    ServerBootstrap bootstrap) {
+        return doBind(capz, socketAddress, null, bootstrap);
+    }
+
+    // options不为null时同时应用其中传输层相关的选项
+    public static AsyncResolveConnectHelper doBind(CapzInternal capz, SocketAddress socketAddress,
+                                                   NetServerOptions options, ServerBootstrap bootstrap) {
         AsyncResolveConnectHelper asyncResolveConnectHelper = new AsyncResolveConnectHelper();
-        bootstrap.channel(NioServerSocketChannel.class);
+        capz.transport().configure(options, bootstrap);
 
         java.net.SocketAddress converted = convert(socketAddress, true);
 
@@ -77,6 +93,7 @@ public class AsyncResolveConnectHelper {
 
         future.addListener(f -> {
             if (f.isSuccess()) {
+                asyncResolveConnectHelper.channels = Collections.singletonList(future.channel());
                 asyncResolveConnectHelper.handle(future, Future.succeededFuture(future.channel()));
             } else {
                 asyncResolveConnectHelper.handle(future, Future.failedFuture(f.cause()));
@@ -85,4 +102,65 @@ public class AsyncResolveConnectHelper {
 
         return asyncResolveConnectHelper;
     }
+
+    /**
+     * 在同一个地址上绑定count个server channel，count大于1时在bootstrap上设置SO_REUSEPORT，需要native传输层。
+     * <p>
+     * 先绑定第一个channel确定实际的端口（端口为0时），再在该端口上绑定其余的channel，每次bind从parent group中
+     * 取下一个event loop，因此各个channel在不同的event loop上accept，由内核在它们之间分配连接。
+     * 全部绑定成功后完成，结果为第一个channel；任何一个失败时关闭已经绑定的channel。
+     */
+    public static AsyncResolveConnectHelper doBind(CapzInternal capz, SocketAddress socketAddress,
+                                                   NetServerOptions options, ServerBootstrap bootstrap, int count) {
+        if (count <= 1) {
+            return doBind(capz, socketAddress, options, bootstrap);
+        }
+        AsyncResolveConnectHelper asyncResolveConnectHelper = new AsyncResolveConnectHelper();
+        capz.transport().configure(options, bootstrap);
+        // 在configure之后设置，覆盖options中的reusePort，options本身不修改
+        capz.transport().reusePort(bootstrap);
+
+        InetSocketAddress converted = (InetSocketAddress) convert(socketAddress, true);
+
+        ChannelFuture first = bootstrap.bind(converted);
+
+        first.addListener(f -> {
+            if (!f.isSuccess()) {
+                asyncResolveConnectHelper.handle(first, Future.failedFuture(f.cause()));
+                return;
+            }
+            int port = ((InetSocketAddress) first.channel().localAddress()).getPort();
+            InetSocketAddress actual = new InetSocketAddress(converted.getAddress(), port);
+            Channel[] bound = new Channel[count];
+            bound[0] = first.channel();
+            AtomicInteger remaining = new AtomicInteger(count - 1);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            for (int i = 1; i < count; i++) {
+                int index = i;
+                ChannelFuture next = bootstrap.bind(actual);
+                next.addListener(nf -> {
+                    if (nf.isSuccess()) {
+                        bound[index] = next.channel();
+                    } else {
+                        failure.compareAndSet(null, nf.cause());
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        if (failure.get() == null) {
+                            asyncResolveConnectHelper.channels = Collections.unmodifiableList(Arrays.asList(bound));
+                            asyncResolveConnectHelper.handle(first, Future.succeededFuture(first.channel()));
+                        } else {
+                            for (Channel channel : bound) {
+                                if (channel != null) {
+                                    channel.close();
+                                }
+                            }
+                            asyncResolveConnectHelper.handle(first, Future.failedFuture(failure.get()));
+                        }
+                    }
+                });
+            }
+        });
+
+        return asyncResolveConnectHelper;
+    }
 }
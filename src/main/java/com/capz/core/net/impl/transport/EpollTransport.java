@@ -0,0 +1,82 @@
+package com.capz.core.net.impl.transport;
+
+import com.capz.core.net.NetServerOptions;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 基于Linux epoll的传输层，native库由netty提供。
+ * <p>
+ * 除了减少JDK NIO的开销，还支持TCP_FASTOPEN、TCP_QUICKACK、SO_REUSEPORT以及边缘/水平触发的选择。
+ */
+class EpollTransport extends Transport {
+
+    // TCP_FASTOPEN的值是等待完成三次握手的请求队列长度
+    private static final int TCP_FASTOPEN_QUEUE_LENGTH = 256;
+
+    EpollTransport() {
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    @Override
+    public Throwable unavailabilityCause() {
+        return Epoll.unavailabilityCause();
+    }
+
+    @Override
+    public boolean isNative() {
+        return true;
+    }
+
+    @Override
+    public EventLoopGroup eventLoopGroup(int nThreads, ThreadFactory threadFactory, int ioRatio) {
+        EpollEventLoopGroup eventLoopGroup = new EpollEventLoopGroup(nThreads, threadFactory);
+        eventLoopGroup.setIoRatio(ioRatio);
+        return eventLoopGroup;
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverChannelType() {
+        return EpollServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends Channel> channelType() {
+        return EpollSocketChannel.class;
+    }
+
+    @Override
+    public void reusePort(ServerBootstrap bootstrap) {
+        bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+    }
+
+    @Override
+    public void configure(NetServerOptions options, ServerBootstrap bootstrap) {
+        super.configure(options, bootstrap);
+        if (options == null) {
+            return;
+        }
+        bootstrap.option(EpollChannelOption.SO_REUSEPORT, options.isReusePort());
+        if (options.isTcpFastOpen()) {
+            bootstrap.option(EpollChannelOption.TCP_FASTOPEN, TCP_FASTOPEN_QUEUE_LENGTH);
+        }
+        EpollMode mode = options.isEdgeTriggered() ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+        bootstrap.option(EpollChannelOption.EPOLL_MODE, mode);
+        bootstrap.childOption(EpollChannelOption.EPOLL_MODE, mode);
+        bootstrap.childOption(EpollChannelOption.TCP_QUICKACK, options.isTcpQuickAck());
+    }
+}
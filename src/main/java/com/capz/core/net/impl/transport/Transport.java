@@ -0,0 +1,117 @@
+package com.capz.core.net.impl.transport;
+
+import com.capz.core.net.NetServerOptions;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 网络传输层的抽象，event loop和channel的类型都从这里获取，所有的bootstrap不再直接使用Nio的类。
+ * <p>
+ * 默认实现使用JDK的NIO，preferNativeTransport时在Linux上使用epoll，不可用时自动退回NIO。
+ */
+public class Transport {
+
+    private static final Logger log = LoggerFactory.getLogger(Transport.class);
+
+    public static final Transport JDK = new Transport();
+
+    /**
+     * 选择传输层，preferNative且native可用时返回epoll实现，否则返回JDK实现
+     */
+    public static Transport transport(boolean preferNative) {
+        if (preferNative) {
+            Transport nativeTransport = nativeTransport();
+            if (nativeTransport.isAvailable()) {
+                return nativeTransport;
+            }
+            log.warn("Native transport not available, falling back to the JDK transport",
+                    nativeTransport.unavailabilityCause());
+        }
+        return JDK;
+    }
+
+    // epoll的类只在这里被引用，非Linux平台或者缺少native库时不会加载失败
+    private static Transport nativeTransport() {
+        try {
+            return new EpollTransport();
+        } catch (Throwable t) {
+            return new UnavailableTransport(t);
+        }
+    }
+
+    protected Transport() {
+    }
+
+    public boolean isAvailable() {
+        return true;
+    }
+
+    public Throwable unavailabilityCause() {
+        return null;
+    }
+
+    public boolean isNative() {
+        return false;
+    }
+
+    public EventLoopGroup eventLoopGroup(int nThreads, ThreadFactory threadFactory, int ioRatio) {
+        NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(nThreads, threadFactory);
+        eventLoopGroup.setIoRatio(ioRatio);
+        return eventLoopGroup;
+    }
+
+    public Class<? extends ServerChannel> serverChannelType() {
+        return NioServerSocketChannel.class;
+    }
+
+    public Class<? extends Channel> channelType() {
+        return NioSocketChannel.class;
+    }
+
+    /**
+     * 设置server bootstrap的channel类型和传输层相关的选项，JDK传输层忽略epoll独有的选项
+     */
+    public void configure(NetServerOptions options, ServerBootstrap bootstrap) {
+        bootstrap.channel(serverChannelType());
+    }
+
+    /**
+     * 设置SO_REUSEPORT，允许多个server channel绑定同一个地址，只有native传输层支持
+     */
+    public void reusePort(ServerBootstrap bootstrap) {
+        throw new IllegalStateException("SO_REUSEPORT requires the native transport");
+    }
+
+    public void configure(Bootstrap bootstrap) {
+        bootstrap.channel(channelType());
+    }
+
+    private static class UnavailableTransport extends Transport {
+
+        private final Throwable cause;
+
+        UnavailableTransport(Throwable cause) {
+            this.cause = cause;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return false;
+        }
+
+        @Override
+        public Throwable unavailabilityCause() {
+            return cause;
+        }
+    }
+}
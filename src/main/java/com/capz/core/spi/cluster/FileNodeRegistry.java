@@ -0,0 +1,162 @@
+package com.capz.core.spi.cluster;
+
+import com.capz.core.AsyncResult;
+import com.capz.core.Handler;
+import com.capz.core.impl.Future;
+import com.capz.core.net.impl.ServerID;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于共享目录的节点注册表，同一台机器（或共享文件系统）上的多个进程通过同一个目录组成集群，主要用于测试。
+ * <p>
+ * 每个订阅是一个空文件：dir/subs/地址/节点，节点加入集群时创建dir/nodes/节点，
+ * 文件名中的地址和host经过URL编码。只依赖文件的创建和删除，不需要加锁。
+ * 所有方法都在调用线程上同步完成文件操作后回调handler。
+ */
+public class FileNodeRegistry implements NodeRegistry {
+
+    private static final String ENCODING = "UTF-8";
+
+    private final Path nodesDir;
+    private final Path subsDir;
+
+    public FileNodeRegistry(File dir) {
+        Path root = dir.toPath();
+        this.nodesDir = root.resolve("nodes");
+        this.subsDir = root.resolve("subs");
+        try {
+            Files.createDirectories(nodesDir);
+            Files.createDirectories(subsDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void join(ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        try {
+            createFile(nodesDir.resolve(nodeName(node)));
+        } catch (IOException e) {
+            completionHandler.handle(Future.failedFuture(e));
+            return;
+        }
+        completionHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void leave(ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        try {
+            Files.deleteIfExists(nodesDir.resolve(nodeName(node)));
+        } catch (IOException e) {
+            completionHandler.handle(Future.failedFuture(e));
+            return;
+        }
+        removeNode(node, completionHandler);
+    }
+
+    @Override
+    public void addSubscription(String address, ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        try {
+            Path addressDir = subsDir.resolve(encode(address));
+            Files.createDirectories(addressDir);
+            createFile(addressDir.resolve(nodeName(node)));
+        } catch (IOException e) {
+            completionHandler.handle(Future.failedFuture(e));
+            return;
+        }
+        completionHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void removeSubscription(String address, ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        // 地址目录不删除，避免和其他进程同时在该目录下创建订阅冲突
+        try {
+            Files.deleteIfExists(subsDir.resolve(encode(address)).resolve(nodeName(node)));
+        } catch (IOException e) {
+            completionHandler.handle(Future.failedFuture(e));
+            return;
+        }
+        completionHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void removeNode(ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        String name = nodeName(node);
+        try (DirectoryStream<Path> addressDirs = Files.newDirectoryStream(subsDir)) {
+            for (Path addressDir : addressDirs) {
+                Files.deleteIfExists(addressDir.resolve(name));
+            }
+        } catch (IOException e) {
+            completionHandler.handle(Future.failedFuture(e));
+            return;
+        }
+        completionHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void subscribers(String address, Handler<AsyncResult<List<ServerID>>> resultHandler) {
+        List<ServerID> result = new ArrayList<>();
+        try (DirectoryStream<Path> nodes = Files.newDirectoryStream(subsDir.resolve(encode(address)))) {
+            for (Path node : nodes) {
+                result.add(parseNodeName(node.getFileName().toString()));
+            }
+        } catch (NoSuchFileException e) {
+            // 从来没有节点订阅过这个地址
+        } catch (IOException | RuntimeException e) {
+            resultHandler.handle(Future.failedFuture(e));
+            return;
+        }
+        resultHandler.handle(Future.succeededFuture(result));
+    }
+
+    private static void createFile(Path path) throws IOException {
+        try {
+            Files.createFile(path);
+        } catch (FileAlreadyExistsException ignore) {
+            // 重复注册
+        }
+    }
+
+    // 文件名为 编码后的host_port
+    private static String nodeName(ServerID node) {
+        return encode(node.host) + "_" + node.port;
+    }
+
+    private static ServerID parseNodeName(String name) {
+        int pos = name.lastIndexOf('_');
+        if (pos == -1) {
+            throw new IllegalStateException("Invalid node file name: " + name);
+        }
+        return new ServerID(Integer.parseInt(name.substring(pos + 1)), decode(name.substring(0, pos)));
+    }
+
+    // URLEncoder不编码'.'和'*'，"."和".."不能作为文件名
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, ENCODING).replace(".", "%2E").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
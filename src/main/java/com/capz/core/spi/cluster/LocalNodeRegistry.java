@@ -0,0 +1,79 @@
+package com.capz.core.spi.cluster;
+
+import com.capz.core.AsyncResult;
+import com.capz.core.Handler;
+import com.capz.core.impl.ConcurrentHashSet;
+import com.capz.core.impl.Future;
+import com.capz.core.net.impl.ServerID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 进程内的节点注册表，同一个JVM中的多个Capz实例共享同一份订阅信息，主要用于测试。
+ */
+public class LocalNodeRegistry implements NodeRegistry {
+
+    private static final ConcurrentMap<String, Set<ServerID>> subscriptions = new ConcurrentHashMap<>();
+    private static final Set<ServerID> nodes = new ConcurrentHashSet<>();
+
+    // 清空所有节点和订阅
+    public static void reset() {
+        subscriptions.clear();
+        nodes.clear();
+    }
+
+    @Override
+    public void join(ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        nodes.add(node);
+        completionHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void leave(ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        nodes.remove(node);
+        removeNode(node, completionHandler);
+    }
+
+    @Override
+    public void addSubscription(String address, ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        // 在compute中添加，与removeSubscription删除空集合互斥，不会加到已经从map中移除的集合里
+        subscriptions.compute(address, (k, set) -> {
+            if (set == null) {
+                set = new ConcurrentHashSet<>();
+            }
+            set.add(node);
+            return set;
+        });
+        completionHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void removeSubscription(String address, ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        subscriptions.computeIfPresent(address, (k, set) -> {
+            set.remove(node);
+            return set.isEmpty() ? null : set;
+        });
+        completionHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void removeNode(ServerID node, Handler<AsyncResult<Void>> completionHandler) {
+        for (String address : subscriptions.keySet()) {
+            removeSubscription(address, node, ar -> {
+            });
+        }
+        completionHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void subscribers(String address, Handler<AsyncResult<List<ServerID>>> resultHandler) {
+        Set<ServerID> set = subscriptions.get(address);
+        List<ServerID> result = set == null ? Collections.emptyList() : new ArrayList<>(set);
+        resultHandler.handle(Future.succeededFuture(result));
+    }
+}
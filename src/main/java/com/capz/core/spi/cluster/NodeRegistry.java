@@ -0,0 +1,34 @@
+package com.capz.core.spi.cluster;
+
+import com.capz.core.AsyncResult;
+import com.capz.core.Handler;
+import com.capz.core.net.impl.ServerID;
+
+import java.util.List;
+
+/**
+ * 集群节点注册表，记录每个地址上有哪些节点注册了consumer。
+ * <p>
+ * 实现类可以基于zookeeper、数据库等，测试时可以使用进程内的{@link LocalNodeRegistry}，
+ * 或者多个进程共享一个目录的{@link FileNodeRegistry}。
+ * 所有方法都是异步的，结果通过handler返回，实现类可以在任意线程上回调。
+ */
+public interface NodeRegistry {
+
+    // 节点加入集群
+    void join(ServerID node, Handler<AsyncResult<Void>> completionHandler);
+
+    // 节点离开集群，同时移除该节点的所有订阅
+    void leave(ServerID node, Handler<AsyncResult<Void>> completionHandler);
+
+    void addSubscription(String address, ServerID node, Handler<AsyncResult<Void>> completionHandler);
+
+    void removeSubscription(String address, ServerID node, Handler<AsyncResult<Void>> completionHandler);
+
+    // 节点失联时（如ping超时）移除该节点的所有订阅
+    void removeNode(ServerID node, Handler<AsyncResult<Void>> completionHandler);
+
+    // 返回在address上有订阅的节点
+    void subscribers(String address, Handler<AsyncResult<List<ServerID>>> resultHandler);
+
+}
@@ -0,0 +1,191 @@
+package com.capz.core.spi.metrics;
+
+import com.capz.core.eventbus.MessageConsumer;
+import com.capz.core.eventbus.ReplyFailure;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 内置的EventBusMetrics实现：每个地址一组LongAdder计数器和一个回复延迟的直方图。
+ * 地址个数超过maxAddresses后，新的地址统计到OTHER_ADDRESS上，避免一次性的地址让统计无限增长。
+ */
+public class DefaultEventBusMetrics implements EventBusMetrics {
+
+    public static final int DEFAULT_MAX_ADDRESSES = 1000;
+    public static final String OTHER_ADDRESS = "__Capz.other";
+
+    private final ConcurrentMap<String, AddressMetrics> addresses = new ConcurrentHashMap<>();
+    private final int maxAddresses;
+
+    public DefaultEventBusMetrics() {
+        this(DEFAULT_MAX_ADDRESSES);
+    }
+
+    public DefaultEventBusMetrics(int maxAddresses) {
+        if (maxAddresses < 1) {
+            throw new IllegalArgumentException("maxAddresses must be > 0");
+        }
+        this.maxAddresses = maxAddresses;
+    }
+
+    // 地址的统计，没有时返回null
+    public AddressMetrics address(String address) {
+        return addresses.get(address);
+    }
+
+    public Map<String, AddressMetrics> addresses() {
+        return Collections.unmodifiableMap(addresses);
+    }
+
+    private AddressMetrics metrics(String address) {
+        AddressMetrics metrics = addresses.get(address);
+        if (metrics == null) {
+            if (addresses.size() >= maxAddresses) {
+                address = OTHER_ADDRESS;
+            }
+            metrics = addresses.computeIfAbsent(address, AddressMetrics::new);
+        }
+        return metrics;
+    }
+
+    @Override
+    public Object handlerRegistered(String address, MessageConsumer<?> consumer) {
+        AddressMetrics metrics = metrics(address);
+        metrics.consumers.add(consumer);
+        return new HandlerMetric(metrics, consumer);
+    }
+
+    @Override
+    public void handlerUnregistered(Object handlerMetric) {
+        if (handlerMetric instanceof HandlerMetric) {
+            HandlerMetric metric = (HandlerMetric) handlerMetric;
+            metric.address.consumers.remove(metric.consumer);
+        }
+    }
+
+    @Override
+    public void messageSent(String address, boolean publish) {
+        AddressMetrics metrics = metrics(address);
+        (publish ? metrics.published : metrics.sent).increment();
+    }
+
+    @Override
+    public void messageReceived(String address, boolean publish, int handlers) {
+        metrics(address).received.increment();
+    }
+
+    @Override
+    public void messageDelivered(String address) {
+        metrics(address).delivered.increment();
+    }
+
+    @Override
+    public void messageDiscarded(String address) {
+        metrics(address).discarded.increment();
+    }
+
+    @Override
+    public void messageExpired(String address) {
+        metrics(address).expired.increment();
+    }
+
+    @Override
+    public void replyReceived(String address, long latencyNanos) {
+        metrics(address).replyLatency.record(latencyNanos);
+    }
+
+    @Override
+    public void replyFailure(String address, ReplyFailure failure) {
+        AddressMetrics metrics = metrics(address);
+        (failure == ReplyFailure.TIMEOUT ? metrics.replyTimeouts : metrics.replyFailures).increment();
+    }
+
+    public static class AddressMetrics {
+
+        private final String address;
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder published = new LongAdder();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder delivered = new LongAdder();
+        private final LongAdder discarded = new LongAdder();
+        private final LongAdder expired = new LongAdder();
+        private final LongAdder replyTimeouts = new LongAdder();
+        private final LongAdder replyFailures = new LongAdder();
+        // 单位是纳秒
+        private final Histogram replyLatency = new Histogram();
+        private final Set<MessageConsumer<?>> consumers = ConcurrentHashMap.newKeySet();
+
+        AddressMetrics(String address) {
+            this.address = address;
+        }
+
+        public String address() {
+            return address;
+        }
+
+        public long sent() {
+            return sent.sum();
+        }
+
+        public long published() {
+            return published.sum();
+        }
+
+        public long received() {
+            return received.sum();
+        }
+
+        public long delivered() {
+            return delivered.sum();
+        }
+
+        public long discarded() {
+            return discarded.sum();
+        }
+
+        public long expired() {
+            return expired.sum();
+        }
+
+        public long replyTimeouts() {
+            return replyTimeouts.sum();
+        }
+
+        public long replyFailures() {
+            return replyFailures.sum();
+        }
+
+        public Histogram replyLatency() {
+            return replyLatency;
+        }
+
+        public int consumers() {
+            return consumers.size();
+        }
+
+        // 该地址上所有consumer还没有处理的消息个数
+        public int pendingMessages() {
+            int pending = 0;
+            for (MessageConsumer<?> consumer : consumers) {
+                pending += consumer.mailboxDepth();
+            }
+            return pending;
+        }
+    }
+
+    private static class HandlerMetric {
+
+        final AddressMetrics address;
+        final MessageConsumer<?> consumer;
+
+        HandlerMetric(AddressMetrics address, MessageConsumer<?> consumer) {
+            this.address = address;
+            this.consumer = consumer;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.capz.core.spi.metrics;
+
+import com.capz.core.eventbus.MessageConsumer;
+import com.capz.core.eventbus.ReplyFailure;
+
+/**
+ * 事件总线的监控SPI，通过EventBusOptions.setMetrics设置，没有设置时通过SPI加载，都没有时不做任何统计。
+ * <p>
+ * 这些方法在发送和处理消息的线程上同步调用，实现必须是线程安全的，并且不能阻塞。
+ * 回复消息没有地址，只通过replyReceived和replyFailure统计，address是请求的地址。
+ */
+public interface EventBusMetrics {
+
+    // 内置的实现，见DefaultEventBusMetrics
+    static DefaultEventBusMetrics create() {
+        return new DefaultEventBusMetrics();
+    }
+
+    // 在address上注册了consumer，返回值保存在consumer中，注销时传给handlerUnregistered
+    default Object handlerRegistered(String address, MessageConsumer<?> consumer) {
+        return null;
+    }
+
+    default void handlerUnregistered(Object handlerMetric) {
+    }
+
+    // 发送或发布了一条消息
+    default void messageSent(String address, boolean publish) {
+    }
+
+    // 本节点收到一条消息，handlers是将要投递的consumer个数
+    default void messageReceived(String address, boolean publish, int handlers) {
+    }
+
+    // consumer的handler处理了一条消息
+    default void messageDelivered(String address) {
+    }
+
+    // consumer丢弃了一条消息（缓存溢出或者已经注销）
+    default void messageDiscarded(String address) {
+    }
+
+    // consumer处理之前请求方等待回复已经超时，消息被丢弃
+    default void messageExpired(String address) {
+    }
+
+    // 收到回复，latencyNanos是从发送请求到回复handler被调用的时间
+    default void replyReceived(String address, long latencyNanos) {
+    }
+
+    // 请求失败，包括超时、没有consumer和consumer调用了fail
+    default void replyFailure(String address, ReplyFailure failure) {
+    }
+}
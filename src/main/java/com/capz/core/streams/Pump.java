@@ -1,6 +1,8 @@
 
 package com.capz.core.streams;
 
+import com.capz.core.streams.impl.PumpImpl;
+
 
 /**
  * Pumps data from a ReadStream to a WriteStream and performs flow control where necessary to
@@ -21,6 +23,14 @@ package com.capz.core.streams;
  */
 public interface Pump {
 
+    static <T> Pump pump(ReadStream<T> rs, WriteStream<T> ws) {
+        return new PumpImpl<>(rs, ws);
+    }
+
+    static <T> Pump pump(ReadStream<T> rs, WriteStream<T> ws, int writeQueueMaxSize) {
+        return new PumpImpl<>(rs, ws, writeQueueMaxSize);
+    }
+
     /**
      * Set the write queue max size to maxSize
      */
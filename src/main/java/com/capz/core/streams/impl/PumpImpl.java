@@ -14,7 +14,7 @@ public class PumpImpl<T> implements Pump {
     private int pumped;
 
 
-    PumpImpl(ReadStream<T> rs, WriteStream<T> ws, int maxWriteQueueSize) {
+    public PumpImpl(ReadStream<T> rs, WriteStream<T> ws, int maxWriteQueueSize) {
         this(rs, ws);
         this.writeStream.setWriteQueueMaxSize(maxWriteQueueSize);
     }